@@ -2,92 +2,100 @@ package com.rpaton.filestorage.processor;
 
 import com.rpaton.filestorage.repository.entity.FileEntity;
 import com.rpaton.filestorage.service.StorageService;
-import lombok.RequiredArgsConstructor;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.log4j.Log4j2;
-import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.buffer.DataBufferUtils;
 import org.springframework.http.codec.multipart.FilePart;
 import org.springframework.stereotype.Component;
 import reactor.core.publisher.Mono;
-import reactor.core.publisher.MonoSink;
+import reactor.core.scheduler.Scheduler;
 import reactor.core.scheduler.Schedulers;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
-import java.nio.channels.Pipe;
-import java.nio.channels.WritableByteChannel;
+import java.io.OutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Base64;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @Log4j2
 @Component
-@RequiredArgsConstructor
 public class FileUploadProcessor {
 
     private final StorageService storageService;
+    private final Scheduler storageScheduler;
+    private final int prefetchBuffers;
 
-    public Mono<FileEntity> processFile(FilePart filePart) {
-        return Mono.<FileEntity>create(emitter -> {
-            try {
-                Pipe pipe = Pipe.open();
-                MessageDigest digest = createDigest();
-                AtomicLong size = new AtomicLong(0);
-                initializeStorage(filePart, pipe, emitter);
-                processFileContent(filePart, pipe, digest, size, emitter);
-            } catch (Exception e) {
-                emitter.error(new RuntimeException("Error initializing file processing", e));
-            }
-        }).subscribeOn(Schedulers.boundedElastic());
+    public FileUploadProcessor(StorageService storageService,
+                               @Value("${storage.threads:64}") int storageThreads,
+                               @Value("${storage.queued-uploads:1024}") int queuedUploads,
+                               @Value("${buffer.upload.prefetch:16}") int prefetchBuffers) {
+        this.storageService = storageService;
+        this.storageScheduler = Schedulers.newBoundedElastic(storageThreads, queuedUploads, "file-storage");
+        this.prefetchBuffers = prefetchBuffers;
     }
 
-    private void processFileContent(FilePart filePart, Pipe pipe, MessageDigest digest, AtomicLong size, MonoSink<FileEntity> sink) {
-        filePart.content()
-                .doOnNext(dataBuffer -> processChunk(dataBuffer, pipe.sink(), digest, size, sink))
-                .doOnComplete(() -> finishProcessing(filePart, pipe, digest, size, sink))
-                .doOnError(sink::error)
-                .subscribeOn(Schedulers.boundedElastic())
-                .subscribe();
+    @PreDestroy
+    public void close() {
+        storageScheduler.dispose();
     }
 
-    private void initializeStorage(FilePart filePart, Pipe pipe, MonoSink<FileEntity> sink) {
-        Schedulers.boundedElastic().schedule(() -> {
-            try (InputStream inputStream = Channels.newInputStream(pipe.source())) {
-                storageService.store(filePart.filename(), inputStream);
-            } catch (Exception e) {
-                sink.error(new RuntimeException("Error reading from pipe", e));
-            }
-        });
+    /**
+     * Streams the part into the storage service while computing its metadata. The content is handed over
+     * through an input stream that only requests more buffers as storage reads them, so the thread delivering
+     * the content never blocks; the blocking storage call runs on a dedicated bounded scheduler. Cancelling
+     * the upload (e.g. a client disconnect) closes that stream, which cancels the content and releases any
+     * queued buffers, and fails the storage read so it discards its partial file instead of keeping a
+     * truncated one.
+     */
+    public Mono<FileEntity> processFile(FilePart filePart) {
+        return Mono.using(() -> DataBufferUtils.subscriberInputStream(filePart.content(), prefetchBuffers),
+                        content -> store(filePart, content),
+                        FileUploadProcessor::closeQuietly)
+                .doOnCancel(() -> log.info("File upload cancelled: {}", filePart.filename()));
     }
 
-    private void processChunk(DataBuffer dataBuffer, WritableByteChannel sinkChannel, MessageDigest digest, AtomicLong size, MonoSink<FileEntity> sink) {
-        try {
-            byte[] chunk = new byte[dataBuffer.readableByteCount()];
-            dataBuffer.read(chunk);
-            digest.update(chunk);
-            size.addAndGet(chunk.length);
-            sinkChannel.write(ByteBuffer.wrap(chunk));
-        } catch (IOException e) {
-            sink.error(new RuntimeException("Error writing to pipe", e));
-        } finally {
-            DataBufferUtils.release(dataBuffer);
-        }
+    private Mono<FileEntity> store(FilePart filePart, InputStream content) {
+        return Mono.defer(() -> {
+            AtomicBoolean cancelled = new AtomicBoolean();
+            MeteredInputStream meteredContent = new MeteredInputStream(content, createDigest(), cancelled);
+            return Mono.fromCallable(() -> {
+                        try {
+                            storageService.store(filePart.filename(), meteredContent);
+                            // The digest and size must cover the whole part, even if storage stopped reading early
+                            meteredContent.transferTo(OutputStream.nullOutputStream());
+                        } catch (Exception e) {
+                            if (!cancelled.get()) {
+                                throw e;
+                            }
+                            // Expected once the content is closed under it; nobody is left to receive the error
+                            log.debug("Storage aborted for cancelled upload: {}", filePart.filename());
+                            return null;
+                        }
+                        return FileEntity.builder()
+                                .fileName(filePart.filename())
+                                .digest(Base64.getEncoder().encodeToString(meteredContent.digest.digest()))
+                                .size(meteredContent.size)
+                                .build();
+                    })
+                    .onErrorMap(e -> new RuntimeException("Error storing file: " + filePart.filename(), e))
+                    .subscribeOn(storageScheduler)
+                    .doOnCancel(() -> {
+                        cancelled.set(true);
+                        // Wakes a storage read waiting for content, which now fails instead of reaching the end
+                        closeQuietly(content);
+                    });
+        });
     }
 
-    private void finishProcessing(FilePart filePart, Pipe pipe, MessageDigest digest, AtomicLong size, MonoSink<FileEntity> emitter) {
+    private static void closeQuietly(InputStream content) {
         try {
-            pipe.sink().close();
-            FileEntity fileEntity = FileEntity.builder()
-                    .fileName(filePart.filename())
-                    .digest(Base64.getEncoder().encodeToString(digest.digest()))
-                    .size(size.get())
-                    .build();
-            emitter.success(fileEntity);
-        } catch (Exception e) {
-            emitter.error(new RuntimeException("Error completing file processing", e));
+            content.close();
+        } catch (IOException e) {
+            log.warn("Failed to close upload content", e);
         }
     }
 
@@ -98,4 +106,69 @@ public class FileUploadProcessor {
             throw new RuntimeException("SHA-256 algorithm not available", e);
         }
     }
+
+    /**
+     * Digests and counts the content as the storage service reads it, on the storage thread. Once the upload
+     * is cancelled every read fails, so a closed content stream is never mistaken for a complete upload.
+     */
+    private static final class MeteredInputStream extends FilterInputStream {
+
+        private final MessageDigest digest;
+        private final AtomicBoolean cancelled;
+        private long size;
+
+        private MeteredInputStream(InputStream content, MessageDigest digest, AtomicBoolean cancelled) {
+            super(content);
+            this.digest = digest;
+            this.cancelled = cancelled;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+            checkNotCancelled();
+            if (value != -1) {
+                digest.update((byte) value);
+                size++;
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            checkNotCancelled();
+            if (read > 0) {
+                digest.update(buffer, offset, read);
+                size += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped bytes still have to be digested
+            byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            int read = read(buffer, 0, buffer.length);
+            return Math.max(read, 0);
+        }
+
+        private void checkNotCancelled() throws IOException {
+            if (cancelled.get()) {
+                // A content stream closed while this thread was reading it is only cleaned up by the next read
+                in.read();
+                throw new IOException("Upload cancelled");
+            }
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+            // Closed by the processor once the upload completes or is cancelled
+        }
+    }
 }
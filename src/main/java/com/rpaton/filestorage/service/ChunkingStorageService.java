@@ -0,0 +1,150 @@
+package com.rpaton.filestorage.service;
+
+import com.rpaton.filestorage.service.chunk.ChunkBloomFilter;
+import com.rpaton.filestorage.service.chunk.ChunkStore;
+import com.rpaton.filestorage.service.chunk.FastCdcChunker;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deduplicating storage: content is split into content-defined chunks, each chunk is kept once by its
+ * SHA-256 hash and a file is stored as a manifest listing its chunk hashes in order.
+ */
+@Log4j2
+@Service
+@ConditionalOnProperty(name = "storage.mode", havingValue = "chunked")
+public class ChunkingStorageService implements StorageService {
+
+    private static final String UPLOAD_DIR = "uploaded-files";
+    private static final String CHUNK_DIR = "uploaded-chunks";
+    private static final String MANIFEST_SUFFIX = ".manifest";
+    private static final String MANIFEST_TEMP_PREFIX = "manifest-";
+    private static final double INDEX_FALSE_POSITIVE_RATE = 0.01;
+
+    private final FastCdcChunker chunker;
+    private final ChunkStore chunkStore;
+    private final Path manifestDir;
+
+    public ChunkingStorageService(@Value("${storage.root:.}") String storageRoot,
+                                  @Value("${storage.chunk.min-size:2048}") int minChunkSize,
+                                  @Value("${storage.chunk.avg-size:8192}") int avgChunkSize,
+                                  @Value("${storage.chunk.max-size:65536}") int maxChunkSize,
+                                  @Value("${storage.chunk.expected-count:1000000}") long expectedChunkCount) {
+        Path root = Path.of(storageRoot).toAbsolutePath().normalize();
+        this.chunker = new FastCdcChunker(minChunkSize, avgChunkSize, maxChunkSize);
+        this.manifestDir = root.resolve(UPLOAD_DIR);
+        try {
+            Files.createDirectories(manifestDir);
+            this.chunkStore = new ChunkStore(root.resolve(CHUNK_DIR),
+                    new ChunkBloomFilter(expectedChunkCount, INDEX_FALSE_POSITIVE_RATE));
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to initialize chunk storage in: " + root, e);
+        }
+    }
+
+    @Override
+    public void store(String fileName, InputStream content) {
+        log.info("Starting to store file: {}", fileName);
+
+        MessageDigest digest = createDigest();
+        HexFormat hex = HexFormat.of();
+        List<String> manifest = new ArrayList<>();
+        AtomicLong totalBytes = new AtomicLong();
+        AtomicLong newChunks = new AtomicLong();
+
+        try {
+            chunker.split(content, (data, offset, length) -> {
+                digest.update(data, offset, length);
+                byte[] hash = digest.digest();
+                if (chunkStore.write(hash, data, offset, length)) {
+                    newChunks.incrementAndGet();
+                }
+                manifest.add(hex.formatHex(hash));
+                totalBytes.addAndGet(length);
+            });
+            writeManifest(fileName, manifest);
+            log.info("Successfully stored file: {}, total bytes: {}, chunks: {}, new chunks: {}",
+                    fileName, totalBytes.get(), manifest.size(), newChunks.get());
+        } catch (IOException e) {
+            log.error("Failed to store file: {}", fileName, e);
+            throw new RuntimeException("Failed to store file: " + fileName, e);
+        }
+    }
+
+    @Override
+    public InputStream load(String fileName) {
+        try {
+            Iterator<String> hashes = Files.readAllLines(manifestPath(fileName)).iterator();
+            return new SequenceInputStream(new Enumeration<>() {
+                @Override
+                public boolean hasMoreElements() {
+                    return hashes.hasNext();
+                }
+
+                @Override
+                public InputStream nextElement() {
+                    try {
+                        return chunkStore.open(hashes.next());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            });
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to load file: " + fileName, e);
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        try {
+            chunkStore.close();
+        } catch (IOException e) {
+            log.warn("Failed to save chunk index snapshot, it will be rebuilt on next start", e);
+        }
+    }
+
+    private void writeManifest(String fileName, List<String> manifest) throws IOException {
+        Path target = manifestPath(fileName);
+        // Not named after the file, whose name may already be close to the file name length limit
+        Path tempFile = Files.createTempFile(manifestDir, MANIFEST_TEMP_PREFIX, MANIFEST_SUFFIX + ".tmp");
+        try {
+            Files.write(tempFile, manifest);
+            Files.move(tempFile, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(tempFile);
+            throw e;
+        }
+    }
+
+    private Path manifestPath(String fileName) {
+        return manifestDir.resolve(fileName + MANIFEST_SUFFIX);
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-256 algorithm not available", e);
+        }
+    }
+}
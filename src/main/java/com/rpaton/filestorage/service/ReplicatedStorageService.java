@@ -0,0 +1,518 @@
+package com.rpaton.filestorage.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.log4j.Log4j2;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+/**
+ * Writes every upload to several volume roots at once. Each buffer is read from the upload stream once and
+ * the same array is queued to every replica writer. The store call returns as soon as the write quorum has
+ * synced its copies; replicas that are still writing finish in the background, and replicas that failed or
+ * fell too far behind are repaired from a completed copy.
+ * <p>
+ * Replica writers run on a dedicated executor per volume rather than a shared pool, so a writer never waits
+ * behind the store threads that are waiting for it. Both the fan-out and the quorum wait give up after the
+ * write timeout. Every store is a new write generation; a replica is stale while a newer generation than the
+ * one in place is pending on its volume, and {@link #load(String)} skips stale replicas. A writer or repair
+ * only moves its copy into place if no newer generation got there first, and shutdown waits for them.
+ */
+@Log4j2
+@Service
+@ConditionalOnProperty(name = "storage.mode", havingValue = "replicated")
+public class ReplicatedStorageService implements StorageService {
+
+    private static final String UPLOAD_DIR = "uploaded-files";
+    private static final String TEMP_PREFIX = "replica-";
+    private static final String TEMP_SUFFIX = ".part";
+    private static final long OFFER_TIMEOUT_MILLIS = 10;
+
+    private static final Segment END_OF_STREAM = new Segment(new byte[0], 0);
+    private static final Segment ABORT = new Segment(new byte[0], 0);
+
+    private final List<Volume> volumes;
+    private final int writeQuorum;
+    private final int bufferSize;
+    private final int maxLagBuffers;
+    private final Duration writeTimeout;
+    private final AtomicLong generations = new AtomicLong();
+    private final Map<Path, Versions> versions = new ConcurrentHashMap<>();
+    private final AtomicInteger unsettled = new AtomicInteger();
+
+    public ReplicatedStorageService(@Value("${storage.replication.volumes}") String[] volumeRoots,
+                                    @Value("${storage.replication.write-quorum:2}") int writeQuorum,
+                                    @Value("${buffer.write.size:8192}") int bufferSize,
+                                    @Value("${storage.replication.max-lag-buffers:1024}") int maxLagBuffers,
+                                    @Value("${storage.replication.write-timeout:30s}") Duration writeTimeout,
+                                    MeterRegistry meterRegistry) {
+        if (writeQuorum < 1 || writeQuorum > volumeRoots.length) {
+            throw new IllegalArgumentException("Write quorum must be between 1 and " + volumeRoots.length);
+        }
+        this.writeQuorum = writeQuorum;
+        this.bufferSize = bufferSize;
+        this.maxLagBuffers = maxLagBuffers;
+        this.writeTimeout = writeTimeout;
+        this.volumes = IntStream.range(0, volumeRoots.length)
+                .mapToObj(i -> new Volume(i, Path.of(volumeRoots[i]).toAbsolutePath().normalize().resolve(UPLOAD_DIR),
+                        meterRegistry))
+                .toList();
+    }
+
+    /**
+     * Waits up to the write timeout for background writers and repairs, which would otherwise die with the JVM
+     * and leave replicas behind the quorum until the next write of the same file.
+     */
+    @PreDestroy
+    public void close() {
+        long deadline = System.nanoTime() + writeTimeout.toNanos();
+        synchronized (unsettled) {
+            long remaining;
+            while (unsettled.get() > 0 && (remaining = deadline - System.nanoTime()) > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(unsettled, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        if (unsettled.get() > 0) {
+            log.warn("Shutting down with {} replica writes or repairs pending", unsettled.get());
+        }
+        volumes.forEach(volume -> volume.writers().shutdown());
+    }
+
+    @Override
+    public void store(String fileName, InputStream content) {
+        log.info("Starting to store file: {} on {} replicas, write quorum: {}", fileName, volumes.size(), writeQuorum);
+
+        long generation = generations.incrementAndGet();
+        List<ReplicaWriter> replicas = volumes.stream()
+                .map(volume -> new ReplicaWriter(volume, fileName, generation))
+                .toList();
+        replicas.forEach(this::begin);
+        CompletableFuture<Void> quorum = trackQuorum(replicas);
+        replicas.forEach(replica -> replica.volume.writers().execute(replica));
+
+        boolean acknowledged = false;
+        try {
+            long totalBytes = 0;
+            int bytesRead;
+            byte[] buffer = new byte[bufferSize];
+
+            while ((bytesRead = content.read(buffer)) != -1) {
+                if (bytesRead > 0) {
+                    fanOut(new Segment(buffer, bytesRead), replicas);
+                    totalBytes += bytesRead;
+                    buffer = new byte[bufferSize];
+                }
+            }
+            fanOut(END_OF_STREAM, replicas);
+
+            quorum.get(writeTimeout.toMillis(), TimeUnit.MILLISECONDS);
+            acknowledged = true;
+            log.info("Successfully stored file: {}, total bytes: {}", fileName, totalBytes);
+        } catch (IOException | ExecutionException | TimeoutException e) {
+            log.error("Failed to store file: {}", fileName, e);
+            throw new RuntimeException("Failed to store file: " + fileName, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while storing file: " + fileName, e);
+        } finally {
+            // Upload errors surface as unchecked exceptions from the stream, so every failure path must release the writers
+            if (!acknowledged) {
+                abort(replicas);
+            }
+        }
+    }
+
+    /**
+     * Reads the most recently written replica that is not still writing or waiting for repair. Stale markers only
+     * live in memory, so after a restart the modification time keeps an older, unrepaired copy from being chosen.
+     */
+    @Override
+    public InputStream load(String fileName) {
+        List<Path> candidates = volumes.stream()
+                .map(volume -> volume.directory().resolve(fileName))
+                .filter(filePath -> !isStale(filePath))
+                .filter(Files::exists)
+                .sorted(Comparator.comparing(ReplicatedStorageService::lastModified).reversed())
+                .toList();
+        for (Path filePath : candidates) {
+            try {
+                return Files.newInputStream(filePath);
+            } catch (IOException e) {
+                log.warn("Failed to read replica: {}, trying next volume", filePath, e);
+            }
+        }
+        throw new RuntimeException("Failed to load file: " + fileName);
+    }
+
+    /**
+     * Hands the segment to every live replica. Replicas with a full queue are waited on only until the quorum
+     * has accepted the segment; whatever is still full after that is lagging and gets dropped for repair.
+     */
+    private void fanOut(Segment segment, List<ReplicaWriter> replicas) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + writeTimeout.toNanos();
+        int accepted = 0;
+        List<ReplicaWriter> full = new ArrayList<>();
+        for (ReplicaWriter replica : replicas) {
+            if (replica.isLive()) {
+                if (replica.offer(segment)) {
+                    accepted++;
+                } else {
+                    full.add(replica);
+                }
+            }
+        }
+
+        while (accepted < writeQuorum && !full.isEmpty()) {
+            if (System.nanoTime() - deadline > 0) {
+                throw new IOException("Write quorum not reached within " + writeTimeout);
+            }
+            for (Iterator<ReplicaWriter> iterator = full.iterator(); iterator.hasNext() && accepted < writeQuorum; ) {
+                ReplicaWriter replica = iterator.next();
+                if (!replica.isLive()) {
+                    iterator.remove();
+                } else if (replica.offer(segment, OFFER_TIMEOUT_MILLIS)) {
+                    accepted++;
+                    iterator.remove();
+                }
+            }
+        }
+        if (accepted < writeQuorum) {
+            throw new IOException("Only " + accepted + " replicas available, write quorum is " + writeQuorum);
+        }
+        full.forEach(ReplicaWriter::drop);
+    }
+
+    private CompletableFuture<Void> trackQuorum(List<ReplicaWriter> replicas) {
+        CompletableFuture<Void> quorum = new CompletableFuture<>();
+        AtomicInteger succeeded = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        int tolerableFailures = replicas.size() - writeQuorum;
+
+        for (ReplicaWriter replica : replicas) {
+            replica.completion.whenComplete((stored, error) -> {
+                if (error == null) {
+                    settle(replica);
+                    if (succeeded.incrementAndGet() == writeQuorum) {
+                        quorum.complete(null);
+                    }
+                    return;
+                }
+                if (failed.incrementAndGet() > tolerableFailures) {
+                    quorum.completeExceptionally(error);
+                }
+                quorum.whenComplete((acknowledged, quorumError) -> {
+                    if (quorumError == null || replicas.stream().anyMatch(ReplicaWriter::isStored)) {
+                        replica.volume.writers().execute(() -> repair(replica, replicas));
+                    } else {
+                        settle(replica);
+                    }
+                });
+            });
+        }
+        return quorum;
+    }
+
+    private void repair(ReplicaWriter replica, List<ReplicaWriter> replicas) {
+        Path source = replicas.stream()
+                .filter(ReplicaWriter::isStored)
+                .map(ReplicaWriter::target)
+                .findFirst()
+                .orElse(null);
+        if (source == null) {
+            log.error("No completed replica to repair from: {}", replica.target());
+            replica.volume.repairs("failed").increment();
+            settle(replica);
+            return;
+        }
+
+        Path tempFile = null;
+        try {
+            log.info("Repairing replica: {} from: {}", replica.target(), source);
+            tempFile = Files.createTempFile(replica.volume.directory(), TEMP_PREFIX, TEMP_SUFFIX);
+            Files.copy(source, tempFile, StandardCopyOption.REPLACE_EXISTING);
+            try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            if (!install(replica, tempFile)) {
+                log.info("Replica: {} was overwritten during repair, discarding repaired copy", replica.target());
+                deleteQuietly(tempFile);
+                return;
+            }
+            replica.volume.repairs("succeeded").increment();
+        } catch (IOException e) {
+            log.error("Failed to repair replica: {}", replica.target(), e);
+            replica.volume.repairs("failed").increment();
+            deleteQuietly(tempFile);
+        } finally {
+            settle(replica);
+        }
+    }
+
+    /**
+     * Aborted uploads leave the previous version wherever no replica completed, so those stay readable.
+     */
+    private void abort(List<ReplicaWriter> replicas) {
+        replicas.forEach(ReplicaWriter::abort);
+        if (replicas.stream().noneMatch(ReplicaWriter::isStored)) {
+            replicas.forEach(replica -> versions.computeIfPresent(replica.target(),
+                    (target, state) -> state.abandoned(replica.generation)));
+        }
+    }
+
+    private void begin(ReplicaWriter replica) {
+        unsettled.incrementAndGet();
+        versions.compute(replica.target(), (target, state) -> (state == null ? Versions.NONE : state).started(replica.generation));
+    }
+
+    /**
+     * Moves a completed copy into place unless the same or a newer generation is already there. The move runs
+     * inside the map update, so it cannot interleave with another writer or repair of the same replica.
+     */
+    private boolean install(ReplicaWriter replica, Path tempFile) throws IOException {
+        AtomicBoolean moved = new AtomicBoolean();
+        try {
+            versions.compute(replica.target(), (target, state) -> {
+                if (state.current() >= replica.generation) {
+                    return state;
+                }
+                try {
+                    Files.move(tempFile, target, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                moved.set(true);
+                return state.installed(replica.generation);
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return moved.get();
+    }
+
+    /**
+     * Called once per replica, when neither its writer nor a repair will touch the file again.
+     */
+    private void settle(ReplicaWriter replica) {
+        versions.computeIfPresent(replica.target(), (target, state) -> state.settled());
+        if (unsettled.decrementAndGet() == 0) {
+            synchronized (unsettled) {
+                unsettled.notifyAll();
+            }
+        }
+    }
+
+    private boolean isStale(Path filePath) {
+        Versions state = versions.get(filePath);
+        return state != null && state.isStale();
+    }
+
+    private static FileTime lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        if (path == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.warn("Failed to delete temporary file: {}", path, e);
+        }
+    }
+
+    private record Segment(byte[] data, int length) {
+    }
+
+    /**
+     * Write generations of one replica: the newest one started, the newest one in place, and the writers or
+     * repairs that may still move a copy into place. Kept only while the replica is stale or still being written.
+     */
+    private record Versions(long latest, long current, int running) {
+
+        static final Versions NONE = new Versions(0, 0, 0);
+
+        boolean isStale() {
+            return current < latest;
+        }
+
+        Versions started(long generation) {
+            return new Versions(generation, current, running + 1);
+        }
+
+        Versions installed(long generation) {
+            return new Versions(latest, generation, running);
+        }
+
+        /**
+         * The write failed before any replica completed, so the copy in place is still the newest version.
+         */
+        Versions abandoned(long generation) {
+            return generation == latest ? new Versions(current, current, running).retained() : this;
+        }
+
+        Versions settled() {
+            return new Versions(latest, current, running - 1).retained();
+        }
+
+        private Versions retained() {
+            return running == 0 && !isStale() ? null : this;
+        }
+    }
+
+    /**
+     * The writer pool is unbounded on purpose: every upload needs its writer running while the store thread
+     * waits for the quorum, so a queued writer could only deadlock. Concurrency is bounded by the uploads.
+     */
+    private record Volume(Path directory, Timer writeTimer, MeterRegistry meterRegistry, ExecutorService writers) {
+
+        Volume(int index, Path directory, MeterRegistry meterRegistry) {
+            this(directory, Timer.builder("storage.replica.write")
+                    .description("Time spent writing upload buffers to a replica volume")
+                    .tag("volume", directory.toString())
+                    .publishPercentiles(0.5, 0.99)
+                    .register(meterRegistry), meterRegistry,
+                    Executors.newCachedThreadPool(Thread.ofPlatform().name("replica-writer-" + index + "-", 0).daemon().factory()));
+        }
+
+        Counter repairs(String outcome) {
+            return Counter.builder("storage.replica.repairs")
+                    .tag("volume", directory.toString())
+                    .tag("outcome", outcome)
+                    .register(meterRegistry);
+        }
+    }
+
+    private final class ReplicaWriter implements Runnable {
+
+        private final Volume volume;
+        private final String fileName;
+        private final long generation;
+        private final BlockingQueue<Segment> queue = new ArrayBlockingQueue<>(maxLagBuffers);
+        private final CompletableFuture<Path> completion = new CompletableFuture<>();
+        private volatile boolean dropped;
+
+        private ReplicaWriter(Volume volume, String fileName, long generation) {
+            this.volume = volume;
+            this.fileName = fileName;
+            this.generation = generation;
+        }
+
+        Path target() {
+            return volume.directory().resolve(fileName);
+        }
+
+        boolean isStored() {
+            return completion.isDone() && !completion.isCompletedExceptionally();
+        }
+
+        boolean isLive() {
+            return !dropped && !completion.isDone();
+        }
+
+        boolean offer(Segment segment) {
+            return queue.offer(segment);
+        }
+
+        boolean offer(Segment segment, long timeoutMillis) throws InterruptedException {
+            return queue.offer(segment, timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+
+        void drop() {
+            log.warn("Replica: {} is lagging behind the write quorum, scheduling repair", target());
+            abort();
+        }
+
+        void abort() {
+            dropped = true;
+            queue.clear();
+            queue.offer(ABORT);
+        }
+
+        @Override
+        public void run() {
+            Path tempFile = null;
+            try {
+                Files.createDirectories(volume.directory());
+                // Not named after the file, whose name may already be close to the file name length limit
+                tempFile = Files.createTempFile(volume.directory(), TEMP_PREFIX, TEMP_SUFFIX);
+                try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+                    writeSegments(channel);
+                }
+                if (!install(this, tempFile)) {
+                    log.info("Replica: {} was overwritten by a newer upload, discarding this copy", target());
+                    deleteQuietly(tempFile);
+                }
+                completion.complete(target());
+            } catch (Exception e) {
+                if (!dropped) {
+                    log.error("Failed to write replica: {}", target(), e);
+                }
+                deleteQuietly(tempFile);
+                completion.completeExceptionally(e);
+            }
+        }
+
+        private void writeSegments(FileChannel channel) throws IOException, InterruptedException {
+            while (true) {
+                Segment segment = queue.take();
+                if (segment == ABORT || dropped) {
+                    throw new IOException("Replica write aborted: " + target());
+                }
+                long start = System.nanoTime();
+                if (segment == END_OF_STREAM) {
+                    channel.force(true);
+                    volume.writeTimer().record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                    return;
+                }
+                ByteBuffer data = ByteBuffer.wrap(segment.data(), 0, segment.length());
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+                volume.writeTimer().record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+}
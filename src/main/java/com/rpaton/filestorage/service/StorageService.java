@@ -8,4 +8,6 @@ import java.io.InputStream;
 public interface StorageService {
 
     void store(String fileName, InputStream content);
+
+    InputStream load(String fileName);
 }
@@ -2,6 +2,7 @@ package com.rpaton.filestorage.service;
 
 import lombok.extern.log4j.Log4j2;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Service;
 
 import java.io.BufferedInputStream;
@@ -10,34 +11,45 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 
 @Log4j2
 @Service
+@ConditionalOnProperty(name = "storage.mode", havingValue = "file", matchIfMissing = true)
 public class StorageServiceImpl implements StorageService {
 
     @Value("${buffer.write.size:8192}")
     private int bufferSize;
 
+    @Value("${storage.root:.}")
+    private String storageRoot;
+
     private static final String UPLOAD_DIR = "uploaded-files";
+    private static final String TEMP_PREFIX = "upload-";
+    private static final String TEMP_SUFFIX = ".part";
 
     @Override
     public void store(String fileName, InputStream content) {
         log.info("Starting to store file: {}", fileName);
 
+        Path tempFile = null;
+        boolean stored = false;
         try {
-            Path uploadPath = Path.of(".", UPLOAD_DIR).toAbsolutePath().normalize();
+            Path uploadPath = Path.of(storageRoot, UPLOAD_DIR).toAbsolutePath().normalize();
             Files.createDirectories(uploadPath);
             Path filePath = uploadPath.resolve(fileName);
+            // Written aside and moved into place, so an aborted upload never leaves a truncated file behind.
+            // The temp name leaves out the file name, which may already use the whole file name length limit.
+            tempFile = Files.createTempFile(uploadPath, TEMP_PREFIX, TEMP_SUFFIX);
+            long totalBytes = 0;
 
             try (BufferedInputStream bufferedInput = new BufferedInputStream(content, bufferSize);
-                 OutputStream outputStream = Files.newOutputStream(filePath,
-                         StandardOpenOption.CREATE,
+                 OutputStream outputStream = Files.newOutputStream(tempFile,
                          StandardOpenOption.WRITE,
                          StandardOpenOption.TRUNCATE_EXISTING)) {
 
                 byte[] buffer = new byte[bufferSize];
-                long totalBytes = 0;
                 int bytesRead;
 
                 while ((bytesRead = bufferedInput.read(buffer)) != -1) {
@@ -51,12 +63,40 @@ public class StorageServiceImpl implements StorageService {
                 }
 
                 outputStream.flush();
-                log.info("Successfully stored file: {}, total bytes: {}", fileName, totalBytes);
             }
 
+            Files.move(tempFile, filePath, StandardCopyOption.ATOMIC_MOVE);
+            stored = true;
+            log.info("Successfully stored file: {}, total bytes: {}", fileName, totalBytes);
         } catch (IOException e) {
             log.error("Failed to store file: {}", fileName, e);
             throw new RuntimeException("Failed to store file: " + fileName, e);
+        } finally {
+            // Upload stream errors are unchecked, so the partial file is dropped on every failure path
+            if (!stored) {
+                deleteQuietly(tempFile);
+            }
+        }
+    }
+
+    @Override
+    public InputStream load(String fileName) {
+        try {
+            Path filePath = Path.of(storageRoot, UPLOAD_DIR).toAbsolutePath().normalize().resolve(fileName);
+            return Files.newInputStream(filePath);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to load file: " + fileName, e);
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        if (path == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.warn("Failed to delete partial file: {}", path, e);
         }
     }
 }
@@ -0,0 +1,89 @@
+package com.rpaton.filestorage.service.chunk;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free bloom filter keyed by chunk hashes. The keys are already SHA-256 digests, so the probe
+ * positions are derived straight from their bytes instead of hashing them again.
+ */
+public class ChunkBloomFilter {
+
+    private final AtomicLongArray bits;
+    private final long bitCount;
+    private final int hashCount;
+
+    public ChunkBloomFilter(long expectedInsertions, double falsePositiveRate) {
+        if (expectedInsertions <= 0 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("Invalid bloom filter sizing");
+        }
+        double ln2 = Math.log(2);
+        long optimalBits = (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveRate) / (ln2 * ln2));
+        int words = (int) Math.min(Integer.MAX_VALUE - 8, (optimalBits + Long.SIZE - 1) / Long.SIZE);
+        this.bits = new AtomicLongArray(words);
+        this.bitCount = (long) words * Long.SIZE;
+        this.hashCount = Math.max(1, (int) Math.round((double) bitCount / expectedInsertions * ln2));
+    }
+
+    public void put(byte[] hash) {
+        ByteBuffer key = ByteBuffer.wrap(hash);
+        long h1 = key.getLong(0);
+        long h2 = key.getLong(Long.BYTES);
+        for (int i = 0; i < hashCount; i++) {
+            long index = bitIndex(h1 + i * h2);
+            long mask = 1L << index;
+            bits.getAndAccumulate((int) (index >>> 6), mask, (current, bit) -> current | bit);
+        }
+    }
+
+    public boolean mightContain(byte[] hash) {
+        ByteBuffer key = ByteBuffer.wrap(hash);
+        long h1 = key.getLong(0);
+        long h2 = key.getLong(Long.BYTES);
+        for (int i = 0; i < hashCount; i++) {
+            long index = bitIndex(h1 + i * h2);
+            if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the filter sizing followed by its bits, so {@link #readFrom(DataInput)} can restore it.
+     */
+    public void writeTo(DataOutput output) throws IOException {
+        output.writeLong(bitCount);
+        output.writeInt(hashCount);
+        for (int i = 0; i < bits.length(); i++) {
+            output.writeLong(bits.get(i));
+        }
+    }
+
+    /**
+     * Merges the bits written by {@link #writeTo(DataOutput)} into this filter.
+     *
+     * @return {@code false}, leaving the filter untouched, if the snapshot was taken with a different sizing
+     */
+    public boolean readFrom(DataInput input) throws IOException {
+        if (input.readLong() != bitCount || input.readInt() != hashCount) {
+            return false;
+        }
+        long[] words = new long[bits.length()];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = input.readLong();
+        }
+        for (int i = 0; i < words.length; i++) {
+            long word = words[i];
+            bits.getAndAccumulate(i, word, (current, bit) -> current | bit);
+        }
+        return true;
+    }
+
+    private long bitIndex(long combinedHash) {
+        return (combinedHash & Long.MAX_VALUE) % bitCount;
+    }
+}
@@ -0,0 +1,176 @@
+package com.rpaton.filestorage.service.chunk;
+
+import lombok.extern.log4j.Log4j2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.HexFormat;
+
+/**
+ * Content-addressed chunk directory. Every chunk is written once under its hex hash, sharded by the first
+ * two hex digits. The bloom filter answers the common "new chunk" case without touching the disk; a
+ * positive answer is confirmed against the directory, which stays the source of truth.
+ * <p>
+ * The filter is snapshotted on {@link #close()} and the snapshot is consumed on startup, so it only exists
+ * while it matches the directory. Without one (first start or a crash) the filter is rebuilt by a background
+ * scan and, until that finishes, every write checks the directory instead.
+ */
+@Log4j2
+public class ChunkStore implements Closeable {
+
+    private static final HexFormat HEX = HexFormat.of();
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String INDEX_SNAPSHOT = "index.bloom";
+
+    private final Path chunkDir;
+    private final ChunkBloomFilter index;
+    private final FileTime startedAt;
+    private volatile boolean indexReady;
+    private volatile boolean closed;
+
+    public ChunkStore(Path chunkDir, ChunkBloomFilter index) throws IOException {
+        this.chunkDir = chunkDir;
+        this.index = index;
+        this.startedAt = FileTime.fromMillis(System.currentTimeMillis());
+        Files.createDirectories(chunkDir);
+        if (loadIndexSnapshot()) {
+            indexReady = true;
+        } else {
+            Thread.ofPlatform().daemon().name("chunk-index-rebuild").start(this::rebuildIndex);
+        }
+    }
+
+    /**
+     * Stores the chunk unless one with the same hash already exists.
+     *
+     * @return {@code true} if the chunk was written, {@code false} if it was deduplicated
+     */
+    public boolean write(byte[] hash, byte[] data, int offset, int length) throws IOException {
+        String name = HEX.formatHex(hash);
+        Path target = resolve(name);
+        if ((!indexReady || index.mightContain(hash)) && Files.exists(target)) {
+            return false;
+        }
+
+        Path shard = Files.createDirectories(target.getParent());
+        Path tempFile = Files.createTempFile(shard, name, TEMP_SUFFIX);
+        try {
+            try (OutputStream outputStream = Files.newOutputStream(tempFile)) {
+                outputStream.write(data, offset, length);
+            }
+            Files.move(tempFile, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(tempFile);
+            throw e;
+        }
+        index.put(hash);
+        return true;
+    }
+
+    public InputStream open(String hexHash) throws IOException {
+        return Files.newInputStream(resolve(hexHash));
+    }
+
+    public boolean isIndexReady() {
+        return indexReady;
+    }
+
+    /**
+     * Snapshots the index so the next start can skip the directory scan. Nothing is written while a rebuild
+     * is still running, because the filter would be missing chunks.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        if (!indexReady) {
+            log.info("Chunk index not rebuilt yet, skipping snapshot in: {}", chunkDir);
+            return;
+        }
+        Path tempFile = Files.createTempFile(chunkDir, INDEX_SNAPSHOT, TEMP_SUFFIX);
+        try {
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                index.writeTo(output);
+            }
+            Files.move(tempFile, chunkDir.resolve(INDEX_SNAPSHOT), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(tempFile);
+            throw e;
+        }
+        log.info("Saved chunk index snapshot in: {}", chunkDir);
+    }
+
+    private Path resolve(String hexHash) {
+        return chunkDir.resolve(hexHash.substring(0, 2)).resolve(hexHash);
+    }
+
+    private boolean loadIndexSnapshot() throws IOException {
+        Path snapshot = chunkDir.resolve(INDEX_SNAPSHOT);
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot)))) {
+            if (!index.readFrom(input)) {
+                log.info("Chunk index snapshot sizing changed, rebuilding index in: {}", chunkDir);
+                return false;
+            }
+            log.info("Loaded chunk index snapshot in: {}", chunkDir);
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException e) {
+            log.warn("Unreadable chunk index snapshot, rebuilding index in: {}", chunkDir, e);
+            return false;
+        } finally {
+            // Chunks written from now on are not in the snapshot; only a clean close may write a new one
+            Files.deleteIfExists(snapshot);
+        }
+    }
+
+    private void rebuildIndex() {
+        long loaded = 0;
+        try (DirectoryStream<Path> shards = Files.newDirectoryStream(chunkDir, Files::isDirectory)) {
+            for (Path shard : shards) {
+                try (DirectoryStream<Path> chunks = Files.newDirectoryStream(shard)) {
+                    for (Path chunk : chunks) {
+                        if (closed) {
+                            return;
+                        }
+                        String name = chunk.getFileName().toString();
+                        if (name.endsWith(TEMP_SUFFIX)) {
+                            deleteStaleTempFile(chunk);
+                            continue;
+                        }
+                        index.put(HEX.parseHex(name));
+                        loaded++;
+                    }
+                }
+            }
+            indexReady = true;
+            log.info("Rebuilt chunk index with {} chunks from: {}", loaded, chunkDir);
+        } catch (IOException e) {
+            log.error("Failed to rebuild chunk index, deduplication keeps checking the directory: {}", chunkDir, e);
+        }
+    }
+
+    /**
+     * Temp files left by an earlier run are leftovers of interrupted writes; newer ones belong to writes in flight.
+     */
+    private void deleteStaleTempFile(Path tempFile) throws IOException {
+        try {
+            if (Files.getLastModifiedTime(tempFile).compareTo(startedAt) < 0) {
+                Files.deleteIfExists(tempFile);
+            }
+        } catch (NoSuchFileException e) {
+            // Completed or cleaned up in the meantime
+        }
+    }
+}
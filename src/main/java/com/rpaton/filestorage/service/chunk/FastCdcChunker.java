@@ -0,0 +1,105 @@
+package com.rpaton.filestorage.service.chunk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.SplittableRandom;
+
+/**
+ * Content-defined chunker based on FastCDC. Cut points are picked by a gear rolling hash over the data itself,
+ * so an insertion or deletion only moves the boundaries around it and the remaining chunks still deduplicate.
+ */
+public class FastCdcChunker {
+
+    private static final long GEAR_SEED = 0x5DEECE66DL;
+    private static final long[] GEAR = createGearTable();
+
+    private final int minSize;
+    private final int avgSize;
+    private final int maxSize;
+    private final long maskSmall;
+    private final long maskLarge;
+
+    public FastCdcChunker(int minSize, int avgSize, int maxSize) {
+        if (minSize <= 0 || minSize > avgSize || avgSize > maxSize) {
+            throw new IllegalArgumentException("Chunk sizes must satisfy 0 < min <= avg <= max");
+        }
+        this.minSize = minSize;
+        this.avgSize = avgSize;
+        this.maxSize = maxSize;
+        int bits = 31 - Integer.numberOfLeadingZeros(avgSize);
+        this.maskSmall = mask(bits + 1);
+        this.maskLarge = mask(bits - 1);
+    }
+
+    /**
+     * Reads the stream to the end and hands every chunk to the consumer. The array passed to the consumer
+     * is reused for the next chunk, so it has to be consumed before {@code accept} returns.
+     */
+    public void split(InputStream content, ChunkConsumer consumer) throws IOException {
+        byte[] buffer = new byte[maxSize];
+        int filled = 0;
+        boolean endOfStream = false;
+
+        while (true) {
+            while (!endOfStream && filled < maxSize) {
+                int bytesRead = content.read(buffer, filled, maxSize - filled);
+                if (bytesRead == -1) {
+                    endOfStream = true;
+                } else {
+                    filled += bytesRead;
+                }
+            }
+            if (filled == 0) {
+                return;
+            }
+
+            int cut = cutPoint(buffer, filled);
+            consumer.accept(buffer, 0, cut);
+            System.arraycopy(buffer, cut, buffer, 0, filled - cut);
+            filled -= cut;
+        }
+    }
+
+    int cutPoint(byte[] data, int length) {
+        if (length <= minSize) {
+            return length;
+        }
+        int normalSize = Math.min(avgSize, length);
+        long hash = 0;
+        int i = minSize;
+
+        for (; i < normalSize; i++) {
+            hash = (hash << 1) + GEAR[data[i] & 0xFF];
+            if ((hash & maskSmall) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < length; i++) {
+            hash = (hash << 1) + GEAR[data[i] & 0xFF];
+            if ((hash & maskLarge) == 0) {
+                return i + 1;
+            }
+        }
+        return length;
+    }
+
+    private static long mask(int bits) {
+        return bits <= 0 ? 0 : -1L << (Long.SIZE - bits);
+    }
+
+    private static long[] createGearTable() {
+        // Fixed seed: boundaries have to stay stable across restarts, otherwise stored chunks never match again
+        SplittableRandom random = new SplittableRandom(GEAR_SEED);
+        long[] gear = new long[256];
+        for (int i = 0; i < gear.length; i++) {
+            gear[i] = random.nextLong();
+        }
+        return gear;
+    }
+
+    @FunctionalInterface
+    public interface ChunkConsumer {
+
+        void accept(byte[] data, int offset, int length) throws IOException;
+    }
+}
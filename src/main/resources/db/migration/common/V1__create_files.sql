@@ -1,10 +1,7 @@
-CREATE SCHEMA IF NOT EXISTS public;
-
-DROP TABLE IF EXISTS files;
-
-CREATE TABLE files (
+-- IF NOT EXISTS: databases created by the old schema.sql are baselined once below this version and already have the table
+CREATE TABLE IF NOT EXISTS files (
                        id SERIAL PRIMARY KEY,
                        file_name VARCHAR(255) NOT NULL,
                        digest VARCHAR(255) NOT NULL,
                        size BIGINT NOT NULL
-);
\ No newline at end of file
+);
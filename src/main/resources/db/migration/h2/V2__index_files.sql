@@ -0,0 +1,4 @@
+-- Embedded databases are only used by tests; H2 has no CREATE INDEX CONCURRENTLY
+CREATE INDEX IF NOT EXISTS files_file_name_idx ON files (file_name);
+
+CREATE INDEX IF NOT EXISTS files_digest_idx ON files (digest);
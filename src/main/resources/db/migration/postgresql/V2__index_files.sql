@@ -0,0 +1,4 @@
+-- Built without blocking inserts into files; Flyway runs these statements outside a transaction
+CREATE INDEX CONCURRENTLY IF NOT EXISTS files_file_name_idx ON files (file_name);
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS files_digest_idx ON files (digest);
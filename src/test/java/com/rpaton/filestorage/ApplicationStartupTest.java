@@ -0,0 +1,113 @@
+package com.rpaton.filestorage;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.r2dbc.core.DatabaseClient;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Boots the whole application against an in-memory H2 database in PostgreSQL mode, so restarts and migrations can
+ * be checked without Docker. Startup time is measured by the fast-boot tagged {@link FastBootStartupTest}. H2 does
+ * not lock an empty schema history, so instances migrating together are covered by {@link PostgresMigrationTest}.
+ */
+class ApplicationStartupTest {
+
+    private static final String DATABASE_OPTIONS = ";MODE=PostgreSQL;DB_CLOSE_DELAY=-1";
+
+    @Test
+    void should_keep_file_metadata_and_apply_each_migration_once_across_restarts() {
+        // Given
+        String database = databaseName();
+        try (ConfigurableApplicationContext context = start(database)) {
+            database(context).sql("INSERT INTO files (file_name, digest, size) VALUES ('image.bin', 'digest', 42)")
+                    .then()
+                    .block();
+        }
+
+        // When
+        try (ConfigurableApplicationContext context = start(database)) {
+            DatabaseClient databaseClient = database(context);
+
+            // Then
+            assertThat(databaseClient.sql("SELECT file_name FROM files")
+                    .map(row -> row.get("file_name", String.class))
+                    .all()
+                    .collectList()
+                    .block())
+                    .containsExactly("image.bin");
+            assertThat(appliedMigrations(databaseClient)).isEqualTo(List.of("1", "2"));
+        }
+    }
+
+    @Test
+    void should_baseline_database_created_before_migrations_once_and_keep_its_files() throws SQLException {
+        // Given - the schema as the old schema.sql created it, without a schema history
+        String database = databaseName();
+        try (Connection connection = DriverManager.getConnection("jdbc:h2:mem:" + database + DATABASE_OPTIONS, "user", "password");
+             Statement statement = connection.createStatement()) {
+            statement.execute("""
+                    CREATE TABLE files (id SERIAL PRIMARY KEY, file_name VARCHAR(255) NOT NULL,
+                                        digest VARCHAR(255) NOT NULL, size BIGINT NOT NULL)
+                    """);
+            statement.execute("INSERT INTO files (file_name, digest, size) VALUES ('legacy.bin', 'digest', 42)");
+        }
+        assertThatThrownBy(() -> start(database))
+                .rootCause()
+                .hasMessageContaining("no schema history table");
+
+        // When
+        start(database, "--spring.flyway.baseline-on-migrate=true").close();
+
+        // Then
+        try (ConfigurableApplicationContext context = start(database)) {
+            DatabaseClient databaseClient = database(context);
+            assertThat(databaseClient.sql("SELECT file_name FROM files")
+                    .map(row -> row.get("file_name", String.class))
+                    .all()
+                    .collectList()
+                    .block())
+                    .containsExactly("legacy.bin");
+            assertThat(appliedMigrations(databaseClient)).isEqualTo(List.of("1", "2"));
+        }
+    }
+
+    private static ConfigurableApplicationContext start(String database, String... args) {
+        List<String> arguments = new ArrayList<>(List.of("--server.port=0",
+                "--spring.r2dbc.url=r2dbc:h2:mem:///" + database + DATABASE_OPTIONS,
+                "--spring.flyway.url=jdbc:h2:mem:" + database + DATABASE_OPTIONS));
+        arguments.addAll(List.of(args));
+        return new SpringApplicationBuilder(FilestorageApplication.class).run(arguments.toArray(String[]::new));
+    }
+
+    private static List<String> appliedMigrations(DatabaseClient databaseClient) {
+        // Only SQL migrations; Flyway also records marker rows without a version
+        return databaseClient.sql("""
+                        SELECT "version" FROM "flyway_schema_history"
+                        WHERE "type" = 'SQL' AND "success"
+                        ORDER BY "installed_rank"
+                        """)
+                .map(row -> row.get(0, String.class))
+                .all()
+                .collectList()
+                .block();
+    }
+
+    private static DatabaseClient database(ConfigurableApplicationContext context) {
+        return context.getBean(DatabaseClient.class);
+    }
+
+    private static String databaseName() {
+        return UUID.randomUUID().toString();
+    }
+}
@@ -0,0 +1,107 @@
+package com.rpaton.filestorage;
+
+import io.r2dbc.h2.H2ConnectionFactory;
+import lombok.extern.log4j.Log4j2;
+import org.h2.Driver;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.boot.convert.DurationStyle;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assumptions.assumeThat;
+
+/**
+ * Starts the packaged application the way the README's fast startup section does: extracted jar, AOT mode and a
+ * class-data-sharing archive recorded by a training run. Tagged {@code fast-boot}, so it only runs with
+ * {@code mvn verify -Pfast-boot}, after the AOT-processed jar is built. The embedded H2 database is added to the
+ * classpath so no PostgreSQL is needed; {@code -Dstartup.max-time} overrides the budget.
+ */
+@Log4j2
+@Tag("fast-boot")
+class FastBootStartupTest {
+
+    private static final Duration DEFAULT_MAX_STARTUP_TIME = Duration.ofSeconds(2);
+    private static final Duration PROCESS_TIMEOUT = Duration.ofMinutes(2);
+    private static final String DATABASE_OPTIONS = ";MODE=PostgreSQL;DB_CLOSE_DELAY=-1";
+
+    @TempDir
+    private Path workDir;
+
+    @Test
+    void should_start_aot_processed_jar_with_class_data_sharing_within_startup_budget() throws Exception {
+        // Given
+        String jar = System.getProperty("fast-boot.jar");
+        assumeThat(jar).as("fast-boot.jar, set by the fast-boot profile").isNotNull();
+        Duration maxStartupTime = DurationStyle.detectAndParse(
+                System.getProperty("startup.max-time", DEFAULT_MAX_STARTUP_TIME.toString()));
+        Path app = workDir.resolve("app");
+        run(List.of(java(), "-Djarmode=tools", "-jar", jar, "extract", "--destination", app.toString()));
+        Path applicationJar = app.resolve(Path.of(jar).getFileName());
+        Path archive = app.resolve("application.jsa");
+        start(applicationJar, "-XX:ArchiveClassesAtExit=" + archive);
+        assertThat(archive).exists();
+
+        // When
+        long start = System.nanoTime();
+        start(applicationJar, "-XX:SharedArchiveFile=" + archive);
+        Duration startupTime = Duration.ofNanos(System.nanoTime() - start);
+
+        // Then
+        log.info("AOT + CDS process started and exited in {} ms", startupTime.toMillis());
+        assertThat(startupTime).isLessThanOrEqualTo(maxStartupTime);
+    }
+
+    /**
+     * Runs the application until its context is refreshed, then lets it exit, so the measured time covers the JVM
+     * start, the whole context refresh (including migrations) and the JVM exit.
+     */
+    private void start(Path applicationJar, String cdsOption) throws Exception {
+        String database = UUID.randomUUID().toString();
+        // The extracted jar references its libraries through its manifest, so they stay on the classpath
+        String classpath = String.join(File.pathSeparator,
+                applicationJar.toString(), jarOf(Driver.class), jarOf(H2ConnectionFactory.class));
+        run(List.of(java(), cdsOption,
+                "-Dspring.aot.enabled=true",
+                "-Dspring.context.exit=onRefresh",
+                "-cp", classpath,
+                FilestorageApplication.class.getName(),
+                "--server.port=0",
+                "--spring.r2dbc.url=r2dbc:h2:mem:///" + database + DATABASE_OPTIONS,
+                "--spring.flyway.url=jdbc:h2:mem:" + database + DATABASE_OPTIONS));
+    }
+
+    private void run(List<String> command) throws IOException, InterruptedException {
+        Path output = Files.createTempFile(workDir, "process", ".log");
+        Process process = new ProcessBuilder(new ArrayList<>(command))
+                .directory(workDir.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(output.toFile())
+                .start();
+        if (!process.waitFor(PROCESS_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)) {
+            process.destroyForcibly();
+        }
+        assertThat(process.exitValue())
+                .as("%s%n%s", command, Files.readString(output))
+                .isZero();
+    }
+
+    private static String java() {
+        return Path.of(System.getProperty("java.home"), "bin", "java").toString();
+    }
+
+    private static String jarOf(Class<?> type) throws URISyntaxException {
+        return Path.of(type.getProtectionDomain().getCodeSource().getLocation().toURI()).toString();
+    }
+}
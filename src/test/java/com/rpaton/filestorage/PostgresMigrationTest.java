@@ -0,0 +1,198 @@
+package com.rpaton.filestorage;
+
+import org.flywaydb.core.Flyway;
+import org.flywaydb.core.api.callback.Callback;
+import org.flywaydb.core.api.callback.Context;
+import org.flywaydb.core.api.callback.Event;
+import org.flywaydb.core.api.configuration.FluentConfiguration;
+import org.flywaydb.core.api.output.MigrateResult;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.flyway.FlywayConnectionDetails;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.Import;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+/**
+ * Runs the application's Flyway configuration against PostgreSQL on fresh databases, to check the behaviour the
+ * embedded database cannot show: the advisory lock between instances and index builds that do not block writes.
+ * Skipped when Docker is unavailable.
+ */
+@SpringBootTest
+@Testcontainers(disabledWithoutDocker = true)
+@Import(TestcontainersConfiguration.class)
+class PostgresMigrationTest {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(30);
+    private static final String MIGRATOR_THREAD = "migrator-";
+
+    // A migration stuck on a lock cannot be interrupted, so after a failure it is abandoned rather than awaited
+    private final ExecutorService migrators = Executors.newCachedThreadPool(
+            Thread.ofPlatform().name(MIGRATOR_THREAD, 0).daemon().factory());
+
+    @Autowired
+    private Flyway flyway;
+
+    @Autowired
+    private FlywayConnectionDetails connectionDetails;
+
+    @AfterEach
+    void tearDown() {
+        migrators.shutdownNow();
+    }
+
+    @Test
+    void should_make_second_instance_wait_for_lock_and_apply_each_migration_once() throws Exception {
+        // Given - the first instance holds the lock, with the schema history created but still empty
+        String url = createDatabase();
+        PauseBeforeFirstMigration pause = new PauseBeforeFirstMigration();
+        Flyway first = migrator(url).callbacks(pause).load();
+        Flyway second = migrator(url).load();
+
+        Future<MigrateResult> firstResult = migrators.submit(first::migrate);
+        assertThat(pause.paused.await(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)).isTrue();
+
+        // When
+        Future<MigrateResult> secondResult = migrators.submit(second::migrate);
+        await().atMost(TIMEOUT).until(PostgresMigrationTest::migratorWaitsForLock);
+        pause.resume.countDown();
+
+        // Then
+        assertThat(firstResult.get(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS).migrationsExecuted).isEqualTo(2);
+        assertThat(secondResult.get(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS).migrationsExecuted).isZero();
+        try (Connection connection = connect(url)) {
+            assertThat(count(connection, "SELECT count(*) FROM flyway_schema_history WHERE type = 'SQL' AND success")).isEqualTo(2);
+        }
+    }
+
+    @Test
+    void should_build_indexes_without_blocking_inserts_into_files() throws Exception {
+        // Given - a transaction inserting into files is still open when the index migration starts
+        String url = createDatabase();
+        migrator(url).target("1").load().migrate();
+
+        try (Connection writer = connect(url);
+             Connection other = connect(url)) {
+            writer.setAutoCommit(false);
+            insertFile(writer, "in-flight.bin");
+            Future<MigrateResult> indexing = migrators.submit(() -> migrator(url).load().migrate());
+            await().atMost(TIMEOUT).until(() -> count(other, "SELECT count(*) FROM pg_locks WHERE NOT granted") > 0);
+
+            // When - a plain CREATE INDEX would queue this insert behind its share lock
+            try (Statement statement = other.createStatement()) {
+                statement.execute("SET lock_timeout = '5s'");
+            }
+            insertFile(other, "concurrent.bin");
+            writer.commit();
+
+            // Then
+            assertThat(indexing.get(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS).migrationsExecuted).isEqualTo(1);
+            assertThat(count(other, "SELECT count(*) FROM files")).isEqualTo(2);
+            assertThat(count(other, """
+                    SELECT count(*) FROM pg_index JOIN pg_class ON pg_class.oid = pg_index.indexrelid
+                    WHERE pg_class.relname IN ('files_file_name_idx', 'files_digest_idx') AND pg_index.indisvalid
+                    """)).isEqualTo(2);
+        }
+    }
+
+    private FluentConfiguration migrator(String url) {
+        return Flyway.configure()
+                .configuration(flyway.getConfiguration())
+                .dataSource(url, connectionDetails.getUsername(), connectionDetails.getPassword());
+    }
+
+    private String createDatabase() throws SQLException {
+        String database = "migration_" + UUID.randomUUID().toString().replace("-", "");
+        try (Connection connection = connect(connectionDetails.getJdbcUrl());
+             Statement statement = connection.createStatement()) {
+            statement.execute("CREATE DATABASE " + database);
+        }
+        return connectionDetails.getJdbcUrl().replaceFirst("/[^/?]+(\\?|$)", "/" + database + "$1");
+    }
+
+    private Connection connect(String url) throws SQLException {
+        return DriverManager.getConnection(url, connectionDetails.getUsername(), connectionDetails.getPassword());
+    }
+
+    private static void insertFile(Connection connection, String fileName) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("INSERT INTO files (file_name, digest, size) VALUES ('" + fileName + "', 'digest', 42)");
+        }
+    }
+
+    private static long count(Connection connection, String sql) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery(sql)) {
+            resultSet.next();
+            return resultSet.getLong(1);
+        }
+    }
+
+    /**
+     * Flyway retries its advisory lock in a sleep loop; the instance holding the lock is past that loop.
+     */
+    private static boolean migratorWaitsForLock() {
+        return Thread.getAllStackTraces().entrySet().stream()
+                .filter(thread -> thread.getKey().getName().startsWith(MIGRATOR_THREAD))
+                .flatMap(thread -> Arrays.stream(thread.getValue()))
+                .anyMatch(frame -> frame.getClassName().endsWith("RetryStrategy"));
+    }
+
+    /**
+     * Holds the migrator inside Flyway's lock, just before it applies its first migration.
+     */
+    private static final class PauseBeforeFirstMigration implements Callback {
+
+        private final CountDownLatch paused = new CountDownLatch(1);
+        private final CountDownLatch resume = new CountDownLatch(1);
+
+        @Override
+        public boolean supports(Event event, Context context) {
+            return event == Event.BEFORE_EACH_MIGRATE;
+        }
+
+        @Override
+        public boolean canHandleInTransaction(Event event, Context context) {
+            return true;
+        }
+
+        @Override
+        public void handle(Event event, Context context) {
+            if (paused.getCount() == 0) {
+                return;
+            }
+            paused.countDown();
+            try {
+                if (!resume.await(TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)) {
+                    throw new IllegalStateException("Migration was not resumed within " + TIMEOUT);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while paused before migrating", e);
+            }
+        }
+
+        @Override
+        public String getCallbackName() {
+            return "pause-before-first-migration";
+        }
+    }
+}
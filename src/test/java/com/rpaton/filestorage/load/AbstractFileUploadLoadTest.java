@@ -0,0 +1,69 @@
+package com.rpaton.filestorage.load;
+
+import com.rpaton.filestorage.load.UploadLoadGenerator.Report;
+import com.rpaton.filestorage.load.UploadLoadGenerator.Scenario;
+import lombok.extern.log4j.Log4j2;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Runs the upload load generator against the application on a random port. Tagged {@code load}, so it only
+ * runs with {@code mvn test -Pload-test}. The default p99 budget only catches stalls; {@code -Dload.max-p99=2s}
+ * tightens it. Uploads are stored in a temporary directory. {@code -Dload.base-url} targets a separately started
+ * server instead, so the memory figures cover that server alone.
+ */
+@Log4j2
+@Tag("load")
+@SpringBootTest(webEnvironment = WebEnvironment.RANDOM_PORT)
+abstract class AbstractFileUploadLoadTest {
+
+    private static final Duration DEFAULT_MAX_P99 = Duration.ofSeconds(10);
+
+    @TempDir
+    private static Path storageRoot;
+
+    @LocalServerPort
+    private int port;
+
+    @DynamicPropertySource
+    static void storageProperties(DynamicPropertyRegistry registry) {
+        registry.add("storage.root", storageRoot::toString);
+        registry.add("storage.replication.volumes", () -> Stream.of("volume-1", "volume-2", "volume-3")
+                .map(volume -> storageRoot.resolve(volume).toString())
+                .collect(Collectors.joining(",")));
+    }
+
+    @Test
+    void should_complete_every_upload_within_latency_budget() {
+        // Given
+        Scenario scenario = Scenario.fromSystemProperties();
+        String baseUrl = System.getProperty("load.base-url");
+        UploadLoadGenerator generator = baseUrl == null
+                ? new UploadLoadGenerator("http://localhost:" + port, scenario, true)
+                : new UploadLoadGenerator(baseUrl, scenario, false);
+
+        // When
+        Report report = generator.run();
+
+        // Then
+        log.info("{}", report);
+        assertThat(report.successfulRequests()).isEqualTo(scenario.requests());
+        assertThat(report.uploadedFiles()).isEqualTo((long) scenario.requests() * scenario.filesPerRequest());
+        assertThat(report.p99()).isLessThanOrEqualTo(
+                DurationStyle.detectAndParse(System.getProperty("load.max-p99", DEFAULT_MAX_P99.toString())));
+    }
+}
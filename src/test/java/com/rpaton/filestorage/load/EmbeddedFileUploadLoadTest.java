@@ -0,0 +1,13 @@
+package com.rpaton.filestorage.load;
+
+import org.springframework.test.context.TestPropertySource;
+
+/**
+ * Load test backed by an in-memory H2 database in PostgreSQL mode, for machines without Docker.
+ */
+@TestPropertySource(properties = {
+        "spring.r2dbc.url=r2dbc:h2:mem:///filedb;MODE=PostgreSQL;DB_CLOSE_DELAY=-1",
+        "spring.flyway.url=jdbc:h2:mem:filedb;MODE=PostgreSQL;DB_CLOSE_DELAY=-1"
+})
+class EmbeddedFileUploadLoadTest extends AbstractFileUploadLoadTest {
+}
@@ -0,0 +1,13 @@
+package com.rpaton.filestorage.load;
+
+import com.rpaton.filestorage.TestcontainersConfiguration;
+import org.springframework.context.annotation.Import;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+/**
+ * Load test backed by the same PostgreSQL container as the integration tests; skipped when Docker is unavailable.
+ */
+@Testcontainers(disabledWithoutDocker = true)
+@Import(TestcontainersConfiguration.class)
+class PostgresFileUploadLoadTest extends AbstractFileUploadLoadTest {
+}
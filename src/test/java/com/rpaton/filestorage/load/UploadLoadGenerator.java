@@ -0,0 +1,216 @@
+package com.rpaton.filestorage.load;
+
+import com.rpaton.filestorage.repository.entity.FileEntity;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.MultipartBodyBuilder;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.reactive.function.BodyInserters;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Drives {@code /file/upload} with a configurable mix of file sizes, files per request and concurrency, and
+ * reports throughput, latency percentiles and the peak heap / direct memory seen while the load was running.
+ * Memory is sampled from the server's {@code /actuator/metrics} endpoint, so it covers the server's JVM; when
+ * the server runs inside the test JVM, that JVM also holds this generator and its payloads.
+ */
+public class UploadLoadGenerator {
+
+    private static final Duration MEMORY_SAMPLE_INTERVAL = Duration.ofMillis(100);
+
+    private final WebClient webClient;
+    private final Scenario scenario;
+    private final boolean sharedJvm;
+    private final List<ByteArrayResource> payloads;
+
+    /**
+     * @param sharedJvm whether the server runs in this JVM, so its memory figures include the generator's own
+     */
+    public UploadLoadGenerator(String baseUrl, Scenario scenario, boolean sharedJvm) {
+        this.webClient = WebClient.builder().baseUrl(baseUrl).build();
+        this.scenario = scenario;
+        this.sharedJvm = sharedJvm;
+        Random random = new Random(42);
+        this.payloads = scenario.fileSizes().stream()
+                .map(size -> {
+                    byte[] content = new byte[(int) size.toBytes()];
+                    random.nextBytes(content);
+                    return new ByteArrayResource(content);
+                })
+                .toList();
+    }
+
+    public Report run() {
+        upload(scenario.warmupRequests(), new long[scenario.warmupRequests()]).block();
+
+        long[] latencies = new long[scenario.requests()];
+        MemorySampler memorySampler = new MemorySampler();
+        Disposable sampling = Flux.interval(MEMORY_SAMPLE_INTERVAL)
+                // Ticks that arrive while the server is slow to answer are skipped rather than queued
+                .onBackpressureDrop()
+                .concatMap(tick -> memorySampler.sample(), 0)
+                .subscribe();
+
+        long start = System.nanoTime();
+        long[] totals = upload(scenario.requests(), latencies).block();
+        Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+
+        sampling.dispose();
+        memorySampler.sample().block();
+        Arrays.sort(latencies);
+        return new Report(scenario, totals[0], totals[1], totals[2], elapsed,
+                percentile(latencies, 0.50), percentile(latencies, 0.99), percentile(latencies, 0.999),
+                memorySampler.peakHeap.get(), memorySampler.peakDirect.get(), sharedJvm);
+    }
+
+    /**
+     * @return successful requests, uploaded files and uploaded bytes
+     */
+    private Mono<long[]> upload(int requests, long[] latencies) {
+        AtomicLongArray totals = new AtomicLongArray(3);
+        return Flux.range(0, requests)
+                .flatMap(request -> uploadRequest(request, latencies, totals), scenario.concurrency())
+                .then(Mono.fromCallable(() -> new long[]{totals.get(0), totals.get(1), totals.get(2)}));
+    }
+
+    private Mono<Void> uploadRequest(int request, long[] latencies, AtomicLongArray totals) {
+        MultipartBodyBuilder bodyBuilder = new MultipartBodyBuilder();
+        long bytes = 0;
+        for (int file = 0; file < scenario.filesPerRequest(); file++) {
+            int payload = (request * scenario.filesPerRequest() + file) % payloads.size();
+            ByteArrayResource content = payloads.get(payload);
+            bodyBuilder.part("file", content).filename("load-" + payload + "-" + file + ".bin");
+            bytes += content.contentLength();
+        }
+        long uploadedBytes = bytes;
+
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+            return webClient.post()
+                    .uri("/file/upload")
+                    .contentType(MediaType.MULTIPART_FORM_DATA)
+                    .body(BodyInserters.fromMultipartData(bodyBuilder.build()))
+                    .retrieve()
+                    .bodyToFlux(FileEntity.class)
+                    .count()
+                    .doOnNext(files -> {
+                        if (files == scenario.filesPerRequest()) {
+                            totals.incrementAndGet(0);
+                        }
+                        totals.addAndGet(1, files);
+                        totals.addAndGet(2, uploadedBytes);
+                    })
+                    .timeout(scenario.requestTimeout())
+                    // A failed request still counts towards latency, it just does not count as successful
+                    .onErrorResume(e -> Mono.empty())
+                    .doFinally(signal -> latencies[request] = System.nanoTime() - start)
+                    .then();
+        });
+    }
+
+    private static Duration percentile(long[] sortedLatencies, double percentile) {
+        if (sortedLatencies.length == 0) {
+            return Duration.ZERO;
+        }
+        int index = (int) Math.ceil(percentile * sortedLatencies.length) - 1;
+        return Duration.ofNanos(sortedLatencies[Math.max(0, index)]);
+    }
+
+    /**
+     * Reads the server's JVM memory meters. Netty's pooled buffers are allocated as direct byte buffers on
+     * current JDKs, so they are part of the direct buffer pool figure.
+     */
+    private final class MemorySampler {
+
+        private final AtomicLong peakHeap = new AtomicLong();
+        private final AtomicLong peakDirect = new AtomicLong();
+
+        Mono<Void> sample() {
+            return Mono.when(
+                    metric("jvm.memory.used", "area:heap").doOnNext(used -> peakHeap.accumulateAndGet(used, Math::max)),
+                    metric("jvm.buffer.memory.used", "id:direct").doOnNext(used -> peakDirect.accumulateAndGet(used, Math::max)));
+        }
+
+        private Mono<Long> metric(String name, String tag) {
+            return webClient.get()
+                    .uri(uri -> uri.path("/actuator/metrics/{name}").queryParam("tag", tag).build(name))
+                    .retrieve()
+                    .bodyToMono(Metric.class)
+                    .map(Metric::value);
+        }
+    }
+
+    private record Metric(List<Measurement> measurements) {
+
+        long value() {
+            return measurements.stream()
+                    .filter(measurement -> "VALUE".equals(measurement.statistic()))
+                    .mapToLong(measurement -> (long) measurement.value())
+                    .sum();
+        }
+    }
+
+    private record Measurement(String statistic, double value) {
+    }
+
+    public record Scenario(List<DataSize> fileSizes, int filesPerRequest, int concurrency, int requests, int warmupRequests,
+                           Duration requestTimeout) {
+
+        /**
+         * Reads the scenario from {@code load.*} system properties, e.g.
+         * {@code -Dload.file-sizes=4KB,1MB,64MB -Dload.concurrency=32}.
+         */
+        public static Scenario fromSystemProperties() {
+            List<DataSize> fileSizes = Arrays.stream(System.getProperty("load.file-sizes", "4KB,256KB,4MB").split(","))
+                    .map(String::trim)
+                    .map(DataSize::parse)
+                    .toList();
+            return new Scenario(fileSizes,
+                    Integer.getInteger("load.files-per-request", 2),
+                    Integer.getInteger("load.concurrency", 8),
+                    Integer.getInteger("load.requests", 100),
+                    Integer.getInteger("load.warmup-requests", 10),
+                    DurationStyle.detectAndParse(System.getProperty("load.request-timeout", "30s")));
+        }
+    }
+
+    public record Report(Scenario scenario, long successfulRequests, long uploadedFiles, long uploadedBytes, Duration elapsed,
+                         Duration p50, Duration p99, Duration p999, long peakHeapBytes, long peakDirectBytes,
+                         boolean sharedJvm) {
+
+        public double requestsPerSecond() {
+            return successfulRequests / (elapsed.toNanos() / 1e9);
+        }
+
+        public double megabytesPerSecond() {
+            return uploadedBytes / (1024.0 * 1024.0) / (elapsed.toNanos() / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("""
+                            Upload load test: %d requests x %d files %s, concurrency %d
+                              successful requests: %d, failed: %d, files: %d, elapsed: %d ms
+                              throughput: %.1f req/s, %.1f MB/s
+                              latency p50: %d ms, p99: %d ms, p99.9: %d ms
+                              server %s peak heap: %d MB, peak direct: %d MB""",
+                    scenario.requests(), scenario.filesPerRequest(), scenario.fileSizes(), scenario.concurrency(),
+                    successfulRequests, scenario.requests() - successfulRequests, uploadedFiles, elapsed.toMillis(),
+                    requestsPerSecond(), megabytesPerSecond(),
+                    p50.toMillis(), p99.toMillis(), p999.toMillis(),
+                    sharedJvm ? "JVM (shared with the load generator)" : "JVM",
+                    peakHeapBytes >> 20, peakDirectBytes >> 20);
+        }
+    }
+}
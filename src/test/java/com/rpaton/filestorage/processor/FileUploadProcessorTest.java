@@ -2,26 +2,40 @@ package com.rpaton.filestorage.processor;
 
 import com.rpaton.filestorage.repository.entity.FileEntity;
 import com.rpaton.filestorage.service.StorageService;
+import com.sun.management.UnixOperatingSystemMXBean;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
-import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.core.io.buffer.DataBufferUtils;
 import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.core.io.buffer.NettyDataBuffer;
+import org.springframework.core.io.buffer.NettyDataBufferFactory;
 import org.springframework.http.codec.multipart.FilePart;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.test.StepVerifier;
 
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -30,12 +44,23 @@ import static org.mockito.Mockito.when;
 @ExtendWith(MockitoExtension.class)
 class FileUploadProcessorTest {
 
+    private static final int STORAGE_THREADS = 4;
+
     @Mock
     private StorageService storageService;
 
-    @InjectMocks
     private FileUploadProcessor fileUploadProcessor;
 
+    @BeforeEach
+    void setup() {
+        fileUploadProcessor = new FileUploadProcessor(storageService, STORAGE_THREADS, 64, 16);
+    }
+
+    @AfterEach
+    void tearDown() {
+        fileUploadProcessor.close();
+    }
+
     @Test
     void should_process_file_and_store_content_once() {
         // Given
@@ -116,6 +141,101 @@ class FileUploadProcessorTest {
         DataBufferUtils.release(buffer3);
     }
 
+    @Test
+    void should_fail_without_blocking_when_storage_fails_before_reading_content() {
+        // Given
+        String fileName = "rejected.bin";
+        FilePart mockFilePart = mock(FilePart.class);
+        when(mockFilePart.filename()).thenReturn(fileName);
+
+        DefaultDataBufferFactory factory = new DefaultDataBufferFactory();
+        when(mockFilePart.content()).thenReturn(Flux.range(0, 100)
+                .map(i -> factory.allocateBuffer(8192).writePosition(8192)));
+
+        doThrow(new RuntimeException("Disk full")).when(storageService).store(eq(fileName), any(InputStream.class));
+
+        // When
+        Mono<FileEntity> result = fileUploadProcessor.processFile(mockFilePart);
+
+        // Then
+        StepVerifier.create(result)
+                .expectError(RuntimeException.class)
+                .verify(Duration.ofSeconds(5));
+    }
+
+    @Test
+    void should_release_buffers_and_storage_threads_when_uploads_are_cancelled() {
+        // Given
+        String fileName = "disconnected.bin";
+        UnpooledByteBufAllocator allocator = new UnpooledByteBufAllocator(true);
+        NettyDataBufferFactory bufferFactory = new NettyDataBufferFactory(allocator);
+        List<NettyDataBuffer> emittedBuffers = new CopyOnWriteArrayList<>();
+
+        FilePart mockFilePart = mock(FilePart.class);
+        when(mockFilePart.filename()).thenReturn(fileName);
+        when(mockFilePart.content()).thenAnswer(invocation -> Flux.<DataBuffer>generate(sink -> {
+            NettyDataBuffer buffer = bufferFactory.allocateBuffer(8192);
+            buffer.writePosition(8192);
+            emittedBuffers.add(buffer);
+            sink.next(buffer);
+        }));
+
+        doAnswer(invocation -> {
+            InputStream is = invocation.getArgument(1);
+            is.transferTo(OutputStream.nullOutputStream());
+            return null;
+        }).when(storageService).store(eq(fileName), any(InputStream.class));
+
+        // Warm up the storage threads first, so the baselines only measure what a cancelled upload leaks
+        cancelUploads(mockFilePart, STORAGE_THREADS * 2, new Random(7));
+        await().pollInSameThread().atMost(Duration.ofSeconds(10)).until(() -> threadsInsideProcessor() == 0);
+        int baselineThreads = Thread.activeCount();
+        long baselineDescriptors = openFileDescriptors();
+
+        // When
+        cancelUploads(mockFilePart, 50, new Random(42));
+
+        // Then
+        await().pollInSameThread().atMost(Duration.ofSeconds(10)).untilAsserted(() -> {
+            assertThat(threadsInsideProcessor()).isZero();
+            assertThat(Thread.activeCount()).isLessThanOrEqualTo(baselineThreads);
+            assertThat(Thread.getAllStackTraces().keySet())
+                    .filteredOn(thread -> thread.getName().startsWith("file-storage"))
+                    .hasSizeLessThanOrEqualTo(STORAGE_THREADS);
+            assertThat(emittedBuffers).allMatch(buffer -> buffer.getNativeBuffer().refCnt() == 0);
+            assertThat(allocator.metric().usedDirectMemory()).isZero();
+            assertThat(openFileDescriptors()).isLessThanOrEqualTo(baselineDescriptors);
+        });
+    }
+
+    private void cancelUploads(FilePart filePart, int uploads, Random random) {
+        for (int i = 0; i < uploads; i++) {
+            StepVerifier.create(fileUploadProcessor.processFile(filePart))
+                    .thenAwait(Duration.ofMillis(random.nextInt(20)))
+                    .thenCancel()
+                    .verify(Duration.ofSeconds(5));
+        }
+    }
+
+    /**
+     * Threads still executing processor or storage code, i.e. uploads that were not unwound by the cancellation.
+     */
+    private static long threadsInsideProcessor() {
+        String processorClass = FileUploadProcessor.class.getName();
+        return Thread.getAllStackTraces().values().stream()
+                .filter(stack -> Arrays.stream(stack)
+                        .map(StackTraceElement::getClassName)
+                        .anyMatch(name -> name.equals(processorClass) || name.startsWith(processorClass + "$")))
+                .count();
+    }
+
+    private static long openFileDescriptors() {
+        if (ManagementFactory.getOperatingSystemMXBean() instanceof UnixOperatingSystemMXBean unixBean) {
+            return unixBean.getOpenFileDescriptorCount();
+        }
+        return 0;
+    }
+
     private DataBuffer createRealDataBuffer(String content) {
         DefaultDataBufferFactory factory = new DefaultDataBufferFactory();
         DataBuffer buffer = factory.allocateBuffer(content.length());
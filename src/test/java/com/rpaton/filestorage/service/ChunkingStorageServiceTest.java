@@ -0,0 +1,112 @@
+package com.rpaton.filestorage.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ChunkingStorageServiceTest {
+
+    private static final int FILE_SIZE = 4 * 1024 * 1024;
+
+    @TempDir
+    private Path storageRoot;
+
+    private ChunkingStorageService storageService;
+
+    @BeforeEach
+    void setup() {
+        storageService = new ChunkingStorageService(storageRoot.toString(), 2048, 8192, 65536, 100_000);
+    }
+
+    @Test
+    void should_store_file_as_chunks_and_reassemble_it_on_load() throws IOException {
+        // Given
+        byte[] content = randomContent(FILE_SIZE, 1);
+
+        // When
+        storageService.store("image.bin", new ByteArrayInputStream(content));
+
+        // Then
+        try (InputStream loaded = storageService.load("image.bin")) {
+            assertThat(loaded.readAllBytes()).isEqualTo(content);
+        }
+        assertThat(countChunks()).isGreaterThan(1);
+    }
+
+    @Test
+    void should_store_file_with_name_close_to_file_system_limit() throws IOException {
+        // Given - still short enough for the manifest name, which appends its suffix
+        String fileName = "a".repeat(240) + ".bin";
+        byte[] content = randomContent(64 * 1024, 5);
+
+        // When
+        storageService.store(fileName, new ByteArrayInputStream(content));
+
+        // Then
+        try (InputStream loaded = storageService.load(fileName)) {
+            assertThat(loaded.readAllBytes()).isEqualTo(content);
+        }
+    }
+
+    @Test
+    void should_store_only_changed_chunks_for_similar_file() throws IOException {
+        // Given
+        byte[] original = randomContent(FILE_SIZE, 2);
+        byte[] modified = new byte[original.length + 100];
+        System.arraycopy(original, 0, modified, 0, FILE_SIZE / 2);
+        System.arraycopy(randomContent(100, 3), 0, modified, FILE_SIZE / 2, 100);
+        System.arraycopy(original, FILE_SIZE / 2, modified, FILE_SIZE / 2 + 100, FILE_SIZE / 2);
+
+        storageService.store("image-v1.bin", new ByteArrayInputStream(original));
+        long chunksAfterFirstUpload = countChunks();
+
+        // When
+        storageService.store("image-v2.bin", new ByteArrayInputStream(modified));
+
+        // Then
+        assertThat(countChunks() - chunksAfterFirstUpload).isBetween(1L, 3L);
+        try (InputStream loaded = storageService.load("image-v2.bin")) {
+            assertThat(loaded.readAllBytes()).isEqualTo(modified);
+        }
+    }
+
+    @Test
+    void should_deduplicate_chunks_already_on_disk_after_restart() throws IOException {
+        // Given
+        byte[] content = randomContent(FILE_SIZE, 4);
+        storageService.store("first.bin", new ByteArrayInputStream(content));
+        long chunksAfterFirstUpload = countChunks();
+
+        // When
+        ChunkingStorageService restarted = new ChunkingStorageService(storageRoot.toString(), 2048, 8192, 65536, 100_000);
+        restarted.store("second.bin", new ByteArrayInputStream(content));
+
+        // Then
+        assertThat(countChunks()).isEqualTo(chunksAfterFirstUpload);
+        try (InputStream loaded = restarted.load("second.bin")) {
+            assertThat(loaded.readAllBytes()).isEqualTo(content);
+        }
+    }
+
+    private long countChunks() throws IOException {
+        try (Stream<Path> files = Files.walk(storageRoot.resolve("uploaded-chunks"))) {
+            return files.filter(Files::isRegularFile).count();
+        }
+    }
+
+    private static byte[] randomContent(int size, long seed) {
+        byte[] content = new byte[size];
+        new Random(seed).nextBytes(content);
+        return content;
+    }
+}
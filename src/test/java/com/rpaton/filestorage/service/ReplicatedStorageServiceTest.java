@@ -0,0 +1,315 @@
+package com.rpaton.filestorage.service;
+
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.awaitility.Awaitility.await;
+
+class ReplicatedStorageServiceTest {
+
+    private static final String FILE_NAME = "replicated.bin";
+    private static final Duration WRITE_TIMEOUT = Duration.ofSeconds(10);
+
+    @TempDir
+    private Path storageRoot;
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    void should_write_content_to_every_volume_and_record_latency_per_volume() throws IOException {
+        // Given
+        String[] volumes = volumes("disk-1", "disk-2", "disk-3");
+        ReplicatedStorageService storageService = new ReplicatedStorageService(volumes, 2, 8192, 256, WRITE_TIMEOUT, meterRegistry);
+        byte[] content = randomContent(1024 * 1024);
+
+        // When
+        storageService.store(FILE_NAME, new ByteArrayInputStream(content));
+
+        // Then
+        await().atMost(Duration.ofSeconds(10)).untilAsserted(() -> {
+            for (String volume : volumes) {
+                assertThat(Path.of(volume, "uploaded-files", FILE_NAME)).hasBinaryContent(content);
+            }
+        });
+        assertThat(meterRegistry.find("storage.replica.write").timers())
+                .hasSize(3)
+                .allMatch(timer -> timer.count() > 0);
+        try (InputStream loaded = storageService.load(FILE_NAME)) {
+            assertThat(loaded.readAllBytes()).isEqualTo(content);
+        }
+    }
+
+    @Test
+    void should_repair_replicas_dropped_for_lagging_behind_quorum() {
+        // Given
+        String[] volumes = volumes("disk-1", "disk-2", "disk-3");
+        ReplicatedStorageService storageService = new ReplicatedStorageService(volumes, 1, 1024, 1, WRITE_TIMEOUT, meterRegistry);
+        byte[] content = randomContent(2 * 1024 * 1024);
+
+        // When
+        storageService.store(FILE_NAME, new ByteArrayInputStream(content));
+
+        // Then
+        await().atMost(Duration.ofSeconds(10)).untilAsserted(() -> {
+            for (String volume : volumes) {
+                assertThat(Path.of(volume, "uploaded-files", FILE_NAME)).hasBinaryContent(content);
+            }
+        });
+    }
+
+    @Test
+    void should_acknowledge_write_when_quorum_is_reached_despite_failed_volume() throws IOException {
+        // Given
+        String[] volumes = volumes("disk-1", "disk-2", "broken");
+        Files.writeString(Path.of(volumes[2]), "not a directory");
+        ReplicatedStorageService storageService = new ReplicatedStorageService(volumes, 2, 8192, 16, WRITE_TIMEOUT, meterRegistry);
+        byte[] content = randomContent(256 * 1024);
+
+        // When
+        storageService.store(FILE_NAME, new ByteArrayInputStream(content));
+
+        // Then
+        assertThat(Path.of(volumes[0], "uploaded-files", FILE_NAME)).hasBinaryContent(content);
+        assertThat(Path.of(volumes[1], "uploaded-files", FILE_NAME)).hasBinaryContent(content);
+        Timer brokenVolumeTimer = meterRegistry.find("storage.replica.write")
+                .tag("volume", Path.of(volumes[2], "uploaded-files").toString())
+                .timer();
+        assertThat(brokenVolumeTimer).isNotNull();
+        assertThat(brokenVolumeTimer.count()).isZero();
+    }
+
+    @Test
+    void should_fail_and_leave_no_partial_files_when_quorum_cannot_be_reached() throws IOException {
+        // Given
+        String[] volumes = volumes("disk-1", "broken-1", "broken-2");
+        Files.writeString(Path.of(volumes[1]), "not a directory");
+        Files.writeString(Path.of(volumes[2]), "not a directory");
+        ReplicatedStorageService storageService = new ReplicatedStorageService(volumes, 2, 8192, 16, WRITE_TIMEOUT, meterRegistry);
+
+        // When & Then
+        assertThatThrownBy(() -> storageService.store(FILE_NAME, new ByteArrayInputStream(randomContent(256 * 1024))))
+                .isInstanceOf(RuntimeException.class)
+                .hasMessageContaining(FILE_NAME);
+        await().atMost(Duration.ofSeconds(10)).untilAsserted(() ->
+                assertThat(Files.list(Path.of(volumes[0], "uploaded-files")))
+                        .noneMatch(path -> path.getFileName().toString().endsWith(".part")));
+    }
+
+    @Test
+    void should_release_writers_and_keep_previous_version_when_upload_fails_mid_stream() throws IOException {
+        // Given
+        String[] volumes = volumes("disk-1", "disk-2", "disk-3");
+        ReplicatedStorageService storageService = new ReplicatedStorageService(volumes, 2, 8192, 16, WRITE_TIMEOUT, meterRegistry);
+        byte[] previous = randomContent(64 * 1024);
+        storageService.store(FILE_NAME, new ByteArrayInputStream(previous));
+        await().atMost(Duration.ofSeconds(10)).untilAsserted(() -> {
+            for (String volume : volumes) {
+                assertThat(Path.of(volume, "uploaded-files", FILE_NAME)).hasBinaryContent(previous);
+            }
+        });
+        // The client disconnects after part of the new version, which the stream reports as an unchecked exception
+        Flux<DataBuffer> broken = Flux.range(0, 32)
+                .<DataBuffer>map(i -> DefaultDataBufferFactory.sharedInstance.wrap(randomContent(8192)))
+                .concatWith(Flux.error(new IOException("Connection reset by peer")));
+
+        // When & Then
+        assertThatThrownBy(() -> storageService.store(FILE_NAME, DataBufferUtils.subscriberInputStream(broken, 16)))
+                .isInstanceOf(RuntimeException.class);
+        await().atMost(Duration.ofSeconds(10)).untilAsserted(() -> {
+            assertThat(Thread.getAllStackTraces().values())
+                    .noneMatch(stack -> Arrays.stream(stack).anyMatch(frame -> frame.getMethodName().equals("writeSegments")));
+            for (String volume : volumes) {
+                try (Stream<Path> files = Files.list(Path.of(volume, "uploaded-files"))) {
+                    assertThat(files).noneMatch(path -> path.getFileName().toString().endsWith(".part"));
+                }
+            }
+        });
+        for (String volume : volumes) {
+            // Only this replica is left readable, so it must hold the previous version and must not be marked stale
+            List<Path> others = Arrays.stream(volumes)
+                    .filter(other -> !other.equals(volume))
+                    .map(other -> Path.of(other, "uploaded-files", FILE_NAME))
+                    .toList();
+            for (Path other : others) {
+                Files.move(other, other.resolveSibling(FILE_NAME + ".aside"));
+            }
+            try (InputStream loaded = storageService.load(FILE_NAME)) {
+                assertThat(loaded.readAllBytes()).isEqualTo(previous);
+            }
+            for (Path other : others) {
+                Files.move(other.resolveSibling(FILE_NAME + ".aside"), other);
+            }
+        }
+    }
+
+    @Test
+    void should_complete_concurrent_uploads_that_exhaust_shared_bounded_elastic_pool() {
+        // Given
+        String[] volumes = volumes("disk-1", "disk-2", "disk-3");
+        ReplicatedStorageService storageService = new ReplicatedStorageService(volumes, 2, 1024, 4, WRITE_TIMEOUT, meterRegistry);
+        byte[] content = randomContent(256 * 1024);
+        int uploads = Schedulers.DEFAULT_BOUNDED_ELASTIC_SIZE * 2;
+
+        // When
+        Long stored = Flux.range(0, uploads)
+                .flatMap(i -> Mono.fromRunnable(() -> storageService.store("file-" + i + ".bin", new ByteArrayInputStream(content)))
+                        .subscribeOn(Schedulers.boundedElastic())
+                        .thenReturn(i), uploads)
+                .count()
+                .block(Duration.ofSeconds(60));
+
+        // Then
+        assertThat(stored).isEqualTo(uploads);
+        assertThat(Path.of(volumes[0], "uploaded-files", "file-0.bin")).hasBinaryContent(content);
+    }
+
+    @Test
+    void should_load_latest_content_while_overwritten_replicas_are_repaired() throws IOException {
+        // Given
+        String[] volumes = volumes("disk-1", "disk-2", "disk-3");
+        ReplicatedStorageService storageService = new ReplicatedStorageService(volumes, 1, 1024, 1, WRITE_TIMEOUT, meterRegistry);
+        byte[] original = randomContent(2 * 1024 * 1024);
+        byte[] overwritten = randomContent(2 * 1024 * 1024 + 1);
+        storageService.store(FILE_NAME, new ByteArrayInputStream(original));
+        await().atMost(Duration.ofSeconds(10)).untilAsserted(() -> {
+            for (String volume : volumes) {
+                assertThat(Path.of(volume, "uploaded-files", FILE_NAME)).hasBinaryContent(original);
+            }
+        });
+
+        // When
+        storageService.store(FILE_NAME, new ByteArrayInputStream(overwritten));
+
+        // Then
+        try (InputStream loaded = storageService.load(FILE_NAME)) {
+            assertThat(loaded.readAllBytes()).isEqualTo(overwritten);
+        }
+    }
+
+    @Test
+    void should_keep_serving_latest_upload_while_repairs_of_earlier_uploads_finish() throws IOException {
+        // Given - a single-replica quorum, so lagging replicas of each upload are still being repaired when the next starts
+        String[] volumes = volumes("disk-1", "disk-2", "disk-3");
+        ReplicatedStorageService storageService = new ReplicatedStorageService(volumes, 1, 1024, 1, WRITE_TIMEOUT, meterRegistry);
+        byte[] latest = new byte[0];
+
+        for (int upload = 0; upload < 20; upload++) {
+            // When
+            latest = randomContent(512 * 1024 + upload);
+            storageService.store(FILE_NAME, new ByteArrayInputStream(latest));
+
+            // Then
+            try (InputStream loaded = storageService.load(FILE_NAME)) {
+                assertThat(loaded.readAllBytes()).isEqualTo(latest);
+            }
+        }
+        storageService.close();
+        for (String volume : volumes) {
+            assertThat(Path.of(volume, "uploaded-files", FILE_NAME)).hasBinaryContent(latest);
+        }
+    }
+
+    @Test
+    void should_finish_pending_repairs_before_shutting_down() {
+        // Given
+        String[] volumes = volumes("disk-1", "disk-2", "disk-3");
+        ReplicatedStorageService storageService = new ReplicatedStorageService(volumes, 1, 1024, 1, WRITE_TIMEOUT, meterRegistry);
+        byte[] content = randomContent(64 * 1024 * 1024);
+        storageService.store(FILE_NAME, new ByteArrayInputStream(content));
+
+        // When
+        storageService.close();
+
+        // Then - sizes first, while a repair still running would not have moved its copy into place yet
+        for (String volume : volumes) {
+            assertThat(Path.of(volume, "uploaded-files", FILE_NAME)).hasSize(content.length);
+        }
+        for (String volume : volumes) {
+            assertThat(Path.of(volume, "uploaded-files", FILE_NAME)).hasBinaryContent(content);
+        }
+    }
+
+    @Test
+    void should_load_most_recently_written_replica_after_restart() throws IOException {
+        // Given
+        String[] volumes = volumes("disk-1", "disk-2", "disk-3");
+        byte[] stale = randomContent(1024);
+        byte[] latest = randomContent(2048);
+        for (int i = 0; i < volumes.length; i++) {
+            Path replica = Files.createDirectories(Path.of(volumes[i], "uploaded-files")).resolve(FILE_NAME);
+            Files.write(replica, i == 0 ? stale : latest);
+            Instant modified = i == 0 ? Instant.now().minus(Duration.ofMinutes(1)) : Instant.now();
+            Files.setLastModifiedTime(replica, FileTime.from(modified));
+        }
+
+        // When
+        ReplicatedStorageService restarted = new ReplicatedStorageService(volumes, 2, 8192, 16, WRITE_TIMEOUT, meterRegistry);
+
+        // Then
+        try (InputStream loaded = restarted.load(FILE_NAME)) {
+            assertThat(loaded.readAllBytes()).isEqualTo(latest);
+        }
+    }
+
+    @Test
+    void should_store_file_with_name_close_to_file_system_limit() throws IOException {
+        // Given - a single-replica quorum, so the lagging replicas are repaired as well
+        String[] volumes = volumes("disk-1", "disk-2", "disk-3");
+        ReplicatedStorageService storageService = new ReplicatedStorageService(volumes, 1, 1024, 1, WRITE_TIMEOUT, meterRegistry);
+        String fileName = "a".repeat(250) + ".bin";
+        byte[] content = randomContent(1024 * 1024);
+
+        // When
+        storageService.store(fileName, new ByteArrayInputStream(content));
+        storageService.close();
+
+        // Then
+        for (String volume : volumes) {
+            assertThat(Path.of(volume, "uploaded-files", fileName)).hasBinaryContent(content);
+        }
+    }
+
+    @Test
+    void should_reject_write_quorum_larger_than_volume_count() {
+        // When & Then
+        assertThatThrownBy(() -> new ReplicatedStorageService(volumes("disk-1"), 2, 8192, 16, WRITE_TIMEOUT, meterRegistry))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private String[] volumes(String... names) {
+        String[] volumes = new String[names.length];
+        for (int i = 0; i < names.length; i++) {
+            volumes[i] = storageRoot.resolve(names[i]).toString();
+        }
+        return volumes;
+    }
+
+    private static byte[] randomContent(int size) {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return content;
+    }
+}
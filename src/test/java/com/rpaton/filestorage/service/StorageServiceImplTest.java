@@ -0,0 +1,146 @@
+package com.rpaton.filestorage.service;
+
+import com.rpaton.filestorage.processor.FileUploadProcessor;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.codec.multipart.FilePart;
+import org.springframework.test.util.ReflectionTestUtils;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class StorageServiceImplTest {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    @TempDir
+    private Path storageRoot;
+
+    private StorageServiceImpl storageService;
+    private FileUploadProcessor fileUploadProcessor;
+
+    @BeforeEach
+    void setup() {
+        storageService = new StorageServiceImpl();
+        ReflectionTestUtils.setField(storageService, "bufferSize", BUFFER_SIZE);
+        ReflectionTestUtils.setField(storageService, "storageRoot", storageRoot.toString());
+        fileUploadProcessor = new FileUploadProcessor(storageService, 4, 64, 16);
+    }
+
+    @AfterEach
+    void tearDown() {
+        fileUploadProcessor.close();
+    }
+
+    @Test
+    void should_move_completed_upload_into_place() throws IOException {
+        // Given
+        FilePart filePart = filePart("complete.bin", Flux.range(0, 100).map(i -> buffer()));
+
+        // When
+        StepVerifier.create(fileUploadProcessor.processFile(filePart))
+                .assertNext(fileEntity -> assertThat(fileEntity.size()).isEqualTo(100L * BUFFER_SIZE))
+                .verifyComplete();
+
+        // Then
+        assertThat(uploadedFiles()).containsExactly(uploadDir().resolve("complete.bin"));
+        try (InputStream loaded = storageService.load("complete.bin")) {
+            assertThat(loaded.readAllBytes()).hasSize(100 * BUFFER_SIZE);
+        }
+    }
+
+    @Test
+    void should_store_file_with_name_close_to_file_system_limit() throws IOException {
+        // Given
+        String fileName = "a".repeat(250) + ".bin";
+        FilePart filePart = filePart(fileName, Flux.range(0, 4).map(i -> buffer()));
+
+        // When
+        StepVerifier.create(fileUploadProcessor.processFile(filePart))
+                .expectNextCount(1)
+                .verifyComplete();
+
+        // Then
+        assertThat(uploadedFiles()).containsExactly(uploadDir().resolve(fileName));
+    }
+
+    @Test
+    void should_delete_partial_file_when_upload_is_cancelled_mid_stream() throws IOException {
+        // Given - a client that sends part of the file and then stalls
+        FilePart filePart = filePart("stalled.bin", Flux.range(0, 100).map(i -> buffer()).concatWith(Flux.never()));
+
+        // When
+        StepVerifier.create(fileUploadProcessor.processFile(filePart))
+                .then(() -> await().atMost(Duration.ofSeconds(10)).until(() -> partialBytes() == 100L * BUFFER_SIZE))
+                .thenCancel()
+                .verify(Duration.ofSeconds(5));
+
+        // Then
+        await().atMost(Duration.ofSeconds(10)).untilAsserted(() -> assertThat(uploadedFiles()).isEmpty());
+    }
+
+    @Test
+    void should_delete_partial_file_when_upload_stream_fails() {
+        // Given - a client connection that breaks after part of the file
+        FilePart filePart = filePart("broken.bin", Flux.range(0, 100).map(i -> buffer())
+                .concatWith(Flux.error(new IOException("Connection reset by peer"))));
+
+        // When
+        StepVerifier.create(fileUploadProcessor.processFile(filePart))
+                .expectError()
+                .verify(Duration.ofSeconds(10));
+
+        // Then
+        await().atMost(Duration.ofSeconds(10)).untilAsserted(() -> assertThat(uploadedFiles()).isEmpty());
+    }
+
+    private FilePart filePart(String fileName, Flux<DataBuffer> content) {
+        FilePart filePart = mock(FilePart.class);
+        when(filePart.filename()).thenReturn(fileName);
+        when(filePart.content()).thenReturn(content);
+        return filePart;
+    }
+
+    private static DataBuffer buffer() {
+        return DefaultDataBufferFactory.sharedInstance.allocateBuffer(BUFFER_SIZE).writePosition(BUFFER_SIZE);
+    }
+
+    private Path uploadDir() {
+        return storageRoot.resolve("uploaded-files");
+    }
+
+    private List<Path> uploadedFiles() throws IOException {
+        if (!Files.exists(uploadDir())) {
+            return List.of();
+        }
+        try (Stream<Path> files = Files.list(uploadDir())) {
+            return files.toList();
+        }
+    }
+
+    private long partialBytes() throws IOException {
+        long bytes = 0;
+        for (Path file : uploadedFiles()) {
+            if (file.getFileName().toString().endsWith(".part")) {
+                bytes += Files.size(file);
+            }
+        }
+        return bytes;
+    }
+}
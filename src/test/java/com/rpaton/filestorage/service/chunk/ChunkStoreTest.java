@@ -0,0 +1,92 @@
+package com.rpaton.filestorage.service.chunk;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+class ChunkStoreTest {
+
+    private static final int CHUNK_COUNT = 200;
+
+    @TempDir
+    private Path chunkDir;
+
+    @Test
+    void should_restore_index_from_snapshot_written_on_close() throws Exception {
+        // Given
+        ChunkStore store = newStore();
+        writeChunks(store);
+        store.close();
+        assertThat(chunkDir.resolve("index.bloom")).exists();
+
+        // When
+        ChunkStore restarted = newStore();
+
+        // Then
+        assertThat(restarted.isIndexReady()).isTrue();
+        assertThat(chunkDir.resolve("index.bloom")).doesNotExist();
+        assertThat(writeChunks(restarted)).isZero();
+    }
+
+    @Test
+    void should_deduplicate_against_directory_while_index_is_rebuilt_after_crash() throws Exception {
+        // Given
+        writeChunks(newStore());
+
+        // When
+        ChunkStore restarted = newStore();
+
+        // Then
+        assertThat(writeChunks(restarted)).isZero();
+        await().atMost(Duration.ofSeconds(10)).until(restarted::isIndexReady);
+        assertThat(writeChunks(restarted)).isZero();
+    }
+
+    @Test
+    void should_remove_only_temp_files_left_by_previous_run() throws Exception {
+        // Given
+        Path shard = Files.createDirectories(chunkDir.resolve("ab"));
+        Path staleTempFile = Files.createFile(shard.resolve("abcd.tmp"));
+        Files.setLastModifiedTime(staleTempFile, FileTime.from(Instant.now().minus(Duration.ofHours(1))));
+        Path inFlightTempFile = Files.createFile(shard.resolve("abef.tmp"));
+        Files.setLastModifiedTime(inFlightTempFile, FileTime.from(Instant.now().plus(Duration.ofHours(1))));
+
+        // When
+        ChunkStore store = newStore();
+
+        // Then
+        await().atMost(Duration.ofSeconds(10)).until(store::isIndexReady);
+        assertThat(staleTempFile).doesNotExist();
+        assertThat(inFlightTempFile).exists();
+    }
+
+    private ChunkStore newStore() throws IOException {
+        return new ChunkStore(chunkDir, new ChunkBloomFilter(10_000, 0.01));
+    }
+
+    /**
+     * @return number of chunks actually written, the rest were deduplicated
+     */
+    private static int writeChunks(ChunkStore store) throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        int written = 0;
+        for (int i = 0; i < CHUNK_COUNT; i++) {
+            byte[] data = ("chunk-" + i).getBytes();
+            if (store.write(digest.digest(data), data, 0, data.length)) {
+                written++;
+            }
+        }
+        return written;
+    }
+}